@@ -0,0 +1,93 @@
+package com.rong.download;
+
+import java.util.List;
+
+/**
+ * 双向链表实现的访问队列，头部最久未访问，尾部最近访问
+ */
+final class AccessQueue<K> {
+    private EvictionPolicy.Node<K> head;//链表的头部
+    private EvictionPolicy.Node<K> tail;//链表的尾部
+    private long weight;//队列中节点的总权重
+
+    // 新节点放到双向链表的尾部
+    void linkLast(EvictionPolicy.Node<K> p) {
+        // 添加元素之前双向链表尾部节点
+        EvictionPolicy.Node<K> last = tail;
+        // tail 指向新添加的节点
+        tail = p;
+        //如果之前 tail 指向 null 那么集合为空新添加的节点 head = tail = p
+        if (last == null)
+            head = p;
+        else {
+            // 否则将新节点的 before 引用指向之前当前链表尾部
+            p.before = last;
+            // 当前链表尾部节点的 after 指向新节点
+            last.after = p;
+        }
+        weight += p.weight;
+    }
+
+    //  从双向链表中删除对应的节点
+    void unlink(EvictionPolicy.Node<K> e) {
+        EvictionPolicy.Node<K> p = e, b = p.before, a = p.after;
+        // 将 p 节点的前后指针引用置为 null 便于内存释放
+        p.before = p.after = null;
+        // p.before 为 null，表明 p 是头节点
+        if (b == null)
+            head = a;
+        else//否则将 p 的前驱节点连接到 p 的后驱节点
+            b.after = a;
+        // a 为 null，表明 p 是尾节点
+        if (a == null)
+            tail = b;
+        else //否则将 a 的前驱节点连接到 b
+            a.before = b;
+        weight -= p.weight;
+    }
+
+    //将被访问节点移动到链表最后
+    void moveToBack(EvictionPolicy.Node<K> e) {
+        EvictionPolicy.Node<K> last;
+        if ((last = tail) != e) {
+            EvictionPolicy.Node<K> p = e, b = p.before, a = p.after;
+            //访问节点的后驱置为 null
+            p.after = null;
+            //如访问节点的前驱为 null 则说明 p = head
+            if (b == null)
+                head = a;
+            else
+                b.after = a;
+            //如果 p 不为尾节点 那么将 a 的前驱设置为 b
+            if (a != null)
+                a.before = b;
+            else
+                last = b;
+
+            if (last == null)
+                head = p;
+            else {
+                p.before = last;
+                last.after = p;
+            }
+            tail = p;// 将 p 接在双向链表的最后
+        }
+    }
+
+    EvictionPolicy.Node<K> peekFirst() {
+        return head;
+    }
+
+    long weight() {
+        return weight;
+    }
+
+    /**
+     * 按从头到尾的顺序把键加入keys
+     */
+    void addKeysTo(List<K> keys) {
+        for (EvictionPolicy.Node<K> e = head; e != null; e = e.after) {
+            keys.add(e.key);
+        }
+    }
+}
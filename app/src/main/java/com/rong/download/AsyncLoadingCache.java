@@ -0,0 +1,176 @@
+package com.rong.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步加载的缓存：未命中时在executor中调用 {@link Loader#load}，同一个键同一时间只有一次加载，
+ * 并发的请求共享同一个 {@link LoadFuture}，避免大量请求同时未命中时重复访问源站
+ *
+ * <p>设置了refreshAfterWrite时，命中的值加载超过该时长后在后台重新加载，请求仍然立即返回旧值，
+ * 重新加载失败时保留旧值。值保存在 {@link LruCache} 中，{@link #sizeOf} 和 {@link #entryRemoved}
+ * 与 LruCache 的同名方法含义相同。
+ */
+public class AsyncLoadingCache<K, V> {
+
+    public interface Loader<K, V> {
+        /**
+         * 在executor的线程中调用
+         * @return 加载的值，为null时不缓存
+         */
+        V load(K key) throws Exception;
+    }
+
+    private final LruCache<K, Loaded<V>> cache;
+    private final ConcurrentHashMap<K, LoadFuture<V>> inFlight;
+    private final Loader<K, V> loader;
+    private final Executor executor;
+    private final long refreshAfterWriteNanos;
+    private final StripedCounter loadSuccessCount = new StripedCounter();
+    private final StripedCounter loadFailureCount = new StripedCounter();
+    private final StripedCounter totalLoadTime = new StripedCounter();
+
+    /**
+     * @param refreshAfterWrite 加载后经过该时长再次命中时在后台刷新，小于等于0时不刷新
+     */
+    public AsyncLoadingCache(int maxSize, Loader<K, V> loader, Executor executor,
+                             long refreshAfterWrite, TimeUnit unit) {
+        this(maxSize, new LruPolicy<K>(), loader, executor, refreshAfterWrite, unit);
+    }
+
+    public AsyncLoadingCache(int maxSize, EvictionPolicy<K> policy, Loader<K, V> loader, Executor executor,
+                             long refreshAfterWrite, TimeUnit unit) {
+        if (loader == null || executor == null) {
+            throw new NullPointerException("loader == null || executor == null");
+        }
+        this.cache = new LruCache<K, Loaded<V>>(maxSize, policy) {
+            @Override
+            protected int sizeOf(K key, Loaded<V> value) {
+                return AsyncLoadingCache.this.sizeOf(key, value.value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, K key, Loaded<V> oldValue, Loaded<V> newValue) {
+                AsyncLoadingCache.this.entryRemoved(evicted, key, oldValue.value,
+                        newValue != null ? newValue.value : null);
+            }
+        };
+        this.inFlight = new ConcurrentHashMap<>();
+        this.loader = loader;
+        this.executor = executor;
+        this.refreshAfterWriteNanos = refreshAfterWrite > 0 ? unit.toNanos(refreshAfterWrite) : 0;
+    }
+
+    /**
+     * @return 已缓存时返回已完成的结果，否则返回正在进行或新发起的加载
+     */
+    public final LoadFuture<V> get(K key) {
+        final Loaded<V> loaded = cache.get(key);
+        if (loaded != null) {
+            if (refreshAfterWriteNanos > 0 && System.nanoTime() - loaded.loadTime >= refreshAfterWriteNanos) {
+                load(key);
+            }
+            return LoadFuture.completed(loaded.value);
+        }
+        return load(key);
+    }
+
+    /**
+     * @return 已缓存的值，没有时返回null，不会发起加载
+     */
+    public final V getIfPresent(K key) {
+        final Loaded<V> loaded = cache.get(key);
+        return loaded != null ? loaded.value : null;
+    }
+
+    public final void put(K key, V value) {
+        cache.put(key, new Loaded<>(value));
+    }
+
+    public final void invalidate(K key) {
+        cache.remove(key);
+    }
+
+    /**
+     * 加载相关的统计来自 {@link Loader#load}
+     */
+    public final CacheStats stats() {
+        final CacheStats stats = cache.stats();
+        return new CacheStats(stats.hitCount(), stats.missCount(), loadSuccessCount.sum(), loadFailureCount.sum(),
+                totalLoadTime.sum(), stats.putCount(), stats.evictionCount(), stats.evictionWeight());
+    }
+
+    /**
+     * @see LruCache#sizeOf
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * @see LruCache#entryRemoved
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * 发起加载，已有正在进行的加载时返回同一个结果
+     */
+    private LoadFuture<V> load(final K key) {
+        final LoadFuture<V> future = new LoadFuture<>();
+        final LoadFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    V value = null;
+                    Throwable failure = null;
+                    final long loadStart = System.nanoTime();
+                    try {
+                        value = loader.load(key);
+                        totalLoadTime.add(System.nanoTime() - loadStart);
+                        if (value != null) {
+                            loadSuccessCount.increment();
+                            cache.put(key, new Loaded<>(value));
+                        } else {
+                            loadFailureCount.increment();
+                        }
+                    } catch (Throwable t) {
+                        totalLoadTime.add(System.nanoTime() - loadStart);
+                        loadFailureCount.increment();
+                        failure = t;
+                    } finally {
+                        //先放入缓存再移除，之后的请求要么命中缓存，要么拿到这次的结果
+                        inFlight.remove(key, future);
+                    }
+                    if (failure != null) {
+                        future.fail(failure);
+                    } else {
+                        future.complete(value);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * 缓存的值及其加载时间
+     */
+    private static final class Loaded<V> {
+        final V value;
+        final long loadTime;
+
+        Loaded(V value) {
+            this.value = value;
+            this.loadTime = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.rong.download;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 分级的直接内存缓冲池，按64KB/256KB/1MB三个规格复用ByteBuffer
+ *
+ * <p>每个线程先从自己的缓存中取，取不到再从全局队列中取，都没有才新分配。
+ * 全局队列按规格限制数量，超出的缓冲区直接丢弃交给GC回收。
+ * 虚拟线程每个分段一个，分段结束线程就退出，不使用线程缓存，只从全局队列中取还。
+ */
+public final class BufferPool {
+    private static final AtomicReference<BufferPool> INSTANCE = new AtomicReference<>();
+
+    public static final int SIZE_SMALL = 64 * 1024;
+    public static final int SIZE_MEDIUM = 256 * 1024;
+    public static final int SIZE_LARGE = 1024 * 1024;
+
+    private static final int[] SIZE_CLASSES = {SIZE_SMALL, SIZE_MEDIUM, SIZE_LARGE};
+    private static final int[] MAX_POOLED = {32, 16, 8};
+    private static final long FILL_MILLIS = 100;//按实测速度选择时，缓冲区大约装下这么长时间的数据
+    private static final Method IS_VIRTUAL = isVirtualMethod();//JDK 21以下为null
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] pools;
+    private final AtomicInteger[] pooledCounts;
+    private final ThreadLocal<ByteBuffer[]> threadCache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @return BufferPool实例对象
+     */
+    public static BufferPool getInstance() {
+        for (; ; ) {
+            BufferPool current = INSTANCE.get();
+            if (current != null) {
+                return current;
+            }
+            current = new BufferPool();
+            if (INSTANCE.compareAndSet(null, current)) {
+                return current;
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool() {
+        pools = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+        pooledCounts = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+        threadCache = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                return new ByteBuffer[SIZE_CLASSES.length];
+            }
+        };
+    }
+
+    /**
+     * 根据分段长度选择缓冲区大小，小分段用小缓冲区避免浪费，大分段用大缓冲区减少系统调用
+     * @param length 分段长度，未知时传小于等于0的值
+     */
+    public static int sizeFor(long length) {
+        if (length <= 0) {
+            return SIZE_MEDIUM;
+        }
+        if (length <= 4L * SIZE_LARGE) {
+            return SIZE_SMALL;
+        }
+        if (length <= 64L * SIZE_LARGE) {
+            return SIZE_MEDIUM;
+        }
+        return SIZE_LARGE;
+    }
+
+    /**
+     * 按连接的实测速度选择缓冲区大小，缓冲区大约每FILL_MILLIS写满一次：
+     * 慢连接用小缓冲区，数据不会在内存中攒很久才写入和更新摘要，快连接用大缓冲区减少系统调用。
+     * 不超过能装下整个分段的规格
+     * @param length 分段长度，未知时传小于等于0的值
+     * @param bytesPerSecond 单连接的实测速度，还没有测过时传小于等于0的值，按分段长度选择
+     */
+    public static int sizeFor(long length, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return sizeFor(length);
+        }
+        int size = SIZE_CLASSES[indexOf(bytesPerSecond * FILL_MILLIS / 1000)];
+        if (length > 0) {
+            size = Math.min(size, SIZE_CLASSES[indexOf(length)]);
+        }
+        return size;
+    }
+
+    /**
+     * 取出一个容量不小于size的缓冲区，超过最大规格时按最大规格返回
+     */
+    public ByteBuffer acquire(int size) {
+        final int index = indexOf(size);
+        final ByteBuffer[] cache = threadCache();
+        ByteBuffer buffer = cache != null ? cache[index] : null;
+        if (buffer != null) {
+            cache[index] = null;
+        } else {
+            buffer = pools[index].poll();
+            if (buffer != null) {
+                pooledCounts[index].decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            missCount.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[index]);
+        } else {
+            hitCount.incrementAndGet();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还由{@link #acquire}取出的缓冲区
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int index = classOf(buffer.capacity());
+        if (index < 0) {
+            return;
+        }
+        final ByteBuffer[] cache = threadCache();
+        if (cache != null && cache[index] == null) {
+            cache[index] = buffer;
+            return;
+        }
+        if (pooledCounts[index].incrementAndGet() <= MAX_POOLED[index]) {
+            pools[index].offer(buffer);
+        } else {
+            pooledCounts[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return {@link #acquire} 复用已有缓冲区的次数
+     */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return {@link #acquire} 新分配缓冲区的次数
+     */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return 当前线程的缓存，虚拟线程返回null，缓存在它的ThreadLocal中的缓冲区会随线程退出而丢失
+     */
+    private ByteBuffer[] threadCache() {
+        if (IS_VIRTUAL != null) {
+            try {
+                if ((Boolean) IS_VIRTUAL.invoke(Thread.currentThread())) {
+                    return null;
+                }
+            } catch (Exception e) {
+                //按平台线程处理
+            }
+        }
+        return threadCache.get();
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static int indexOf(long size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    private static int classOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        final long hits = hitCount.get();
+        final long misses = missCount.get();
+        final long accesses = hits + misses;
+        final long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("BufferPool[hits=%d,misses=%d,hitRate=%d%%]", hits, misses, hitPercent);
+    }
+}
@@ -0,0 +1,133 @@
+package com.rong.download;
+
+/**
+ * {@link LruCache} 统计数据的不可变快照，由 {@link LruCache#stats} 返回
+ *
+ * <p>两个快照相减得到一段时间内的增量，用于比较不同淘汰策略在同一访问序列上的命中率。
+ */
+public final class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long putCount;
+    private final long evictionCount;
+    private final long evictionWeight;
+
+    public CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+                      long totalLoadTime, long putCount, long evictionCount, long evictionWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+    }
+
+    /**
+     * Returns the number of times {@link LruCache#get} was called.
+     */
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return 命中率，没有请求时为1
+     */
+    public double hitRate() {
+        final long requestCount = requestCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return 未命中率，没有请求时为0
+     */
+    public double missRate() {
+        final long requestCount = requestCount();
+        return requestCount == 0 ? 0.0 : (double) missCount / requestCount;
+    }
+
+    /**
+     * Returns the number of times {@link LruCache#create} returned a value.
+     */
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * Returns the number of times {@link LruCache#create} returned null.
+     */
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return 调用 {@link LruCache#create} 的总耗时，单位纳秒
+     */
+    public long totalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * @return 每次调用 {@link LruCache#create} 的平均耗时，单位纳秒
+     */
+    public double averageLoadPenalty() {
+        final long loadCount = loadSuccessCount + loadFailureCount;
+        return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+    }
+
+    public long putCount() {
+        return putCount;
+    }
+
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return 被淘汰的项按 {@link LruCache#sizeOf} 计算的总大小
+     */
+    public long evictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * @return 本快照减去other的增量，结果不小于0
+     */
+    public CacheStats minus(CacheStats other) {
+        return new CacheStats(
+                Math.max(0, hitCount - other.hitCount),
+                Math.max(0, missCount - other.missCount),
+                Math.max(0, loadSuccessCount - other.loadSuccessCount),
+                Math.max(0, loadFailureCount - other.loadFailureCount),
+                Math.max(0, totalLoadTime - other.totalLoadTime),
+                Math.max(0, putCount - other.putCount),
+                Math.max(0, evictionCount - other.evictionCount),
+                Math.max(0, evictionWeight - other.evictionWeight));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTime=" + totalLoadTime +
+                ", putCount=" + putCount +
+                ", evictionCount=" + evictionCount +
+                ", evictionWeight=" + evictionWeight +
+                '}';
+    }
+}
@@ -0,0 +1,185 @@
+package com.rong.download;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 订阅 {@link SegmentPublisher}，在磁盘线程池中通过FileChannel按顺序写入目标文件
+ *
+ * <p>开始时请求PREFETCH个缓冲，每写完一个再请求一个，单个分段占用的内存不超过PREFETCH个缓冲；
+ * 磁盘跟不上时不再请求，网络读取随之暂停。
+ */
+public final class ChannelSegmentSubscriber implements SegmentFlow.Subscriber<ByteBuffer>, Runnable {
+
+    public static final int PREFETCH = 4;
+
+    private final RandomAccessFile target;
+    private final FileChannel channel;
+    private final long startPath;
+    private final Executor executor;
+    private final SegmentWriter.WriteListener writeListener;
+    private final Callback callback;
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();//不为0时已有写入任务
+    private SegmentFlow.Subscription subscription;
+    private volatile boolean done;//发布者已结束
+    private volatile Throwable error;
+    private boolean finished;//已回调Callback，只在持有wip时访问
+    private long position;//只在写入任务中访问
+
+    /**
+     * 写入结束的回调，在写入线程中执行
+     */
+    public interface Callback {
+        /**
+         * @param written 写入的字节数
+         */
+        void onComplete(long written);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * @param startPath 第一个元素在目标文件中的位置
+     * @param executor 执行写入的线程池
+     * @param writeListener 每次写入后回调，可以为null
+     */
+    public ChannelSegmentSubscriber(File file, long startPath, Executor executor,
+                                    SegmentWriter.WriteListener writeListener, Callback callback)
+            throws FileNotFoundException {
+        this.target = new RandomAccessFile(file, "rw");
+        this.channel = target.getChannel();
+        this.startPath = startPath;
+        this.position = startPath;
+        this.executor = executor;
+        this.writeListener = writeListener;
+        this.callback = callback;
+    }
+
+    @Override
+    public void onSubscribe(SegmentFlow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(PREFETCH);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        queue.offer(item);
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                //没有写入任务在运行，wip不再归零，在当前线程中结束，不在这里写文件
+                subscription.cancel();
+                if (!finished) {
+                    finish(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        while (true) {
+            drain();
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        if (finished) {
+            releaseQueued();
+            return;
+        }
+        final BufferPool pool = BufferPool.getInstance();
+        while (true) {
+            ByteBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                try {
+                    final long writePosition = position;
+                    final ByteBuffer data = buffer.duplicate();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    if (writeListener != null) {
+                        writeListener.onWrite(writePosition, data);
+                    }
+                } catch (IOException e) {
+                    subscription.cancel();
+                    finish(e);
+                    return;
+                } finally {
+                    pool.release(buffer);
+                }
+                subscription.request(1);
+            }
+            if (!done) {
+                return;
+            }
+            //发布者在结束前发出的元素一定已经在队列中
+            if (!queue.isEmpty()) {
+                continue;
+            }
+            final Throwable throwable = error;
+            if (throwable == null) {
+                finish(null);
+            } else {
+                finish(throwable instanceof Exception ? (Exception) throwable : new IOException(throwable));
+            }
+            return;
+        }
+    }
+
+    private void finish(Exception e) {
+        finished = true;
+        releaseQueued();
+        try {
+            target.close();
+        } catch (IOException ioe) {
+            if (e == null) {
+                e = ioe;
+            }
+        }
+        if (e == null) {
+            callback.onComplete(position - startPath);
+        } else {
+            callback.onError(e);
+        }
+    }
+
+    private void releaseQueued() {
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            BufferPool.getInstance().release(buffer);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.rong.download;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.BufferedSource;
+
+/**
+ * 通过FileChannel按偏移位置写入目标文件
+ */
+public final class ChannelSegmentWriter implements SegmentWriter {
+
+    private final RandomAccessFile target;
+    private final FileChannel channel;
+    private final FileTmp fileTmp;
+    private final int bufferSize;
+    private WriteListener mWriteListener;
+
+    /**
+     * @param fileTmp 写入的分段，写入过程中endPath可能被其他连接缩短
+     */
+    public ChannelSegmentWriter(File file, FileTmp fileTmp) throws FileNotFoundException {
+        this(file, fileTmp, BufferPool.sizeFor(fileTmp.getEndPath() - fileTmp.startPath));
+    }
+
+    /**
+     * @param bufferSize 每次写入的缓冲区大小，见 {@link BufferPool#sizeFor(long, long)}
+     */
+    public ChannelSegmentWriter(File file, FileTmp fileTmp, int bufferSize) throws FileNotFoundException {
+        this.target = new RandomAccessFile(file, "rw");
+        this.channel = target.getChannel();
+        this.fileTmp = fileTmp;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public long write(BufferedSource source) throws IOException {
+        final BufferPool pool = BufferPool.getInstance();
+        final ByteBuffer buffer = pool.acquire(bufferSize);
+        long position = fileTmp.startPath;
+        try {
+            boolean exhausted = false;
+            while (!exhausted) {
+                final int claimed = fileTmp.claim(position, buffer.capacity());
+                if (claimed <= 0) {
+                    break;
+                }
+                buffer.limit(claimed);
+                //先把缓冲区读满再写入，减少write的调用次数
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        exhausted = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                final long writePosition = position;
+                final ByteBuffer data = buffer.duplicate();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                if (mWriteListener != null) {
+                    mWriteListener.onWrite(writePosition, data);
+                }
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return position - fileTmp.startPath;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+        this.mWriteListener = listener;
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+}
@@ -0,0 +1,47 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分块摘要清单：文件按chunkSize切成固定大小的块，每块一个十六进制摘要，最后一块可以不足chunkSize
+ */
+public final class ChunkManifest {
+    final long chunkSize;
+    final List<String> chunkHashes;
+
+    /**
+     * @param chunkSize 每块的长度
+     * @param chunkHashes 按顺序排列的每块摘要，MD5、SHA-1或SHA-256
+     */
+    public ChunkManifest(long chunkSize, List<String> chunkHashes) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("ChunkManifest chunkSize <= 0");
+        }
+        if (chunkHashes == null || chunkHashes.isEmpty()) {
+            throw new IllegalArgumentException("ChunkManifest chunkHashes is empty");
+        }
+        this.chunkSize = chunkSize;
+        this.chunkHashes = Collections.unmodifiableList(new ArrayList<>(chunkHashes));
+    }
+
+    public int chunkCount() {
+        return chunkHashes.size();
+    }
+
+    /**
+     * @return 清单的块数是否与文件长度一致
+     */
+    public boolean matches(long length) {
+        return length > 0 && (length + chunkSize - 1) / chunkSize == chunkHashes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{" +
+                "chunkSize=" + chunkSize +
+                ", chunkCount=" + chunkHashes.size() +
+                '}';
+    }
+}
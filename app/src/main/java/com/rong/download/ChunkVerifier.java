@@ -0,0 +1,126 @@
+package com.rong.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按ChunkManifest逐块校验下载的数据，块的所有字节写入后立即校验，
+ * 校验失败的块由调用者重新下载，不需要重新下载整个文件
+ *
+ * <p>每块用一个{@link StreamingDigest}计算，块内的数据可能来自多个分段，
+ * 乱序写入的部分在校验时从文件中补读。
+ */
+public final class ChunkVerifier {
+
+    /**
+     * 同一块校验失败超过该次数时放弃下载
+     */
+    public static final int MAX_CHUNK_RETRIES = 3;
+
+    private final ChunkManifest manifest;
+    private final File file;
+    private final long length;
+    private final long[] writtenBytes;
+    private final StreamingDigest[] digests;
+    private final int[] failures;
+
+    public ChunkVerifier(ChunkManifest manifest, File file, long length) {
+        if (!manifest.matches(length)) {
+            throw new IllegalArgumentException("ChunkManifest does not match length " + length);
+        }
+        this.manifest = manifest;
+        this.file = file;
+        this.length = length;
+        this.writtenBytes = new long[manifest.chunkCount()];
+        this.digests = new StreamingDigest[manifest.chunkCount()];
+        this.failures = new int[manifest.chunkCount()];
+    }
+
+    /**
+     * 之前已经下载完成的区间，例如从下载日志恢复的区间，完整的块会立即从文件中读出来校验
+     * @return 校验失败的块 [start,end)
+     */
+    public List<long[]> markCompleted(long start, long end) throws IOException {
+        final List<long[]> failed = new ArrayList<>();
+        long position = start;
+        while (position < end) {
+            final int index = (int) (position / manifest.chunkSize);
+            final long chunkEnd = chunkEnd(index);
+            final long n = Math.min(end, chunkEnd) - position;
+            if (addWritten(index, n)) {
+                verifyChunk(index, failed);
+            }
+            position += n;
+        }
+        return failed;
+    }
+
+    /**
+     * 数据data已写入文件的 [position,position+data.remaining()) ，不会修改data的position
+     * @return 因为这次写入而写满且校验失败的块 [start,end)，通常为空
+     * @throws IOException 同一块校验失败的次数超过{@link #MAX_CHUNK_RETRIES}
+     */
+    public List<long[]> update(long position, ByteBuffer data) throws IOException {
+        final List<long[]> failed = new ArrayList<>();
+        final ByteBuffer remaining = data.duplicate();
+        while (remaining.hasRemaining()) {
+            final int index = (int) (position / manifest.chunkSize);
+            final int n = (int) Math.min(remaining.remaining(), chunkEnd(index) - position);
+            final ByteBuffer part = remaining.duplicate();
+            part.limit(part.position() + n);
+            digestOf(index).update(position, part);
+            remaining.position(remaining.position() + n);
+            position += n;
+            if (addWritten(index, n)) {
+                verifyChunk(index, failed);
+            }
+        }
+        return failed;
+    }
+
+    private synchronized StreamingDigest digestOf(int index) {
+        if (digests[index] == null) {
+            digests[index] = StreamingDigest.create(manifest.chunkHashes.get(index), file, chunkStart(index));
+            if (digests[index] == null) {
+                throw new IllegalArgumentException("Unknown chunk hash " + manifest.chunkHashes.get(index));
+            }
+        }
+        return digests[index];
+    }
+
+    /**
+     * @return 该块是否因为这次写入而写满
+     */
+    private synchronized boolean addWritten(int index, long n) {
+        writtenBytes[index] += n;
+        return writtenBytes[index] == chunkEnd(index) - chunkStart(index);
+    }
+
+    private void verifyChunk(int index, List<long[]> failed) throws IOException {
+        final StreamingDigest digest = digestOf(index);
+        final boolean verified = digest.verify(chunkEnd(index), manifest.chunkHashes.get(index));
+        synchronized (this) {
+            digests[index] = null;
+            if (verified) {
+                return;
+            }
+            //重置后重新下载该块
+            writtenBytes[index] = 0;
+            if (++failures[index] > MAX_CHUNK_RETRIES) {
+                throw new IOException("Chunk " + index + " failed verification " + failures[index] + " times");
+            }
+        }
+        failed.add(new long[]{chunkStart(index), chunkEnd(index)});
+    }
+
+    private long chunkStart(int index) {
+        return index * manifest.chunkSize;
+    }
+
+    private long chunkEnd(int index) {
+        return Math.min(length, (index + 1) * manifest.chunkSize);
+    }
+}
@@ -0,0 +1,150 @@
+package com.rong.download;
+
+/**
+ * {@link HttpUtils} 连接复用情况的不可变快照，由 {@link HttpUtils#connectionStats} 返回
+ *
+ * <p>连接池和Dispatcher的数量是取快照时的瞬时值，其余为累计值，两个快照相减得到一段时间内的增量。
+ */
+public final class ConnectionStats {
+    private final long callCount;
+    private final long newConnectionCount;
+    private final long reusedConnectionCount;
+    private final long failedConnectCount;
+    private final long tlsHandshakeCount;
+    private final long http2ConnectionCount;
+    private final long totalConnectTime;
+    private final long totalTlsTime;
+    private final int idleConnectionCount;
+    private final int connectionCount;
+    private final int runningCallCount;
+    private final int queuedCallCount;
+
+    public ConnectionStats(long callCount, long newConnectionCount, long reusedConnectionCount,
+                           long failedConnectCount, long tlsHandshakeCount, long http2ConnectionCount,
+                           long totalConnectTime, long totalTlsTime, int idleConnectionCount,
+                           int connectionCount, int runningCallCount, int queuedCallCount) {
+        this.callCount = callCount;
+        this.newConnectionCount = newConnectionCount;
+        this.reusedConnectionCount = reusedConnectionCount;
+        this.failedConnectCount = failedConnectCount;
+        this.tlsHandshakeCount = tlsHandshakeCount;
+        this.http2ConnectionCount = http2ConnectionCount;
+        this.totalConnectTime = totalConnectTime;
+        this.totalTlsTime = totalTlsTime;
+        this.idleConnectionCount = idleConnectionCount;
+        this.connectionCount = connectionCount;
+        this.runningCallCount = runningCallCount;
+        this.queuedCallCount = queuedCallCount;
+    }
+
+    public long callCount() {
+        return callCount;
+    }
+
+    /**
+     * @return 新建连接的次数，包括预热的连接
+     */
+    public long newConnectionCount() {
+        return newConnectionCount;
+    }
+
+    /**
+     * @return 请求直接使用了连接池中已有连接的次数，HTTP/2的多路复用也计算在内
+     */
+    public long reusedConnectionCount() {
+        return reusedConnectionCount;
+    }
+
+    public long failedConnectCount() {
+        return failedConnectCount;
+    }
+
+    public long tlsHandshakeCount() {
+        return tlsHandshakeCount;
+    }
+
+    /**
+     * @return 协商为HTTP/2（包括h2c prior knowledge）的新连接数
+     */
+    public long http2ConnectionCount() {
+        return http2ConnectionCount;
+    }
+
+    /**
+     * @return 复用率，没有获取过连接时为0
+     */
+    public double reuseRate() {
+        final long acquired = newConnectionCount + reusedConnectionCount;
+        return acquired == 0 ? 0.0 : (double) reusedConnectionCount / acquired;
+    }
+
+    /**
+     * @return 新建连接的平均耗时，包括TLS握手，单位纳秒
+     */
+    public double averageConnectTime() {
+        return newConnectionCount == 0 ? 0.0 : (double) totalConnectTime / newConnectionCount;
+    }
+
+    /**
+     * @return TLS握手的平均耗时，单位纳秒
+     */
+    public double averageTlsTime() {
+        return tlsHandshakeCount == 0 ? 0.0 : (double) totalTlsTime / tlsHandshakeCount;
+    }
+
+    public int idleConnectionCount() {
+        return idleConnectionCount;
+    }
+
+    public int connectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return okhttp的Dispatcher中正在执行的请求数
+     */
+    public int runningCallCount() {
+        return runningCallCount;
+    }
+
+    /**
+     * @return okhttp的Dispatcher中因为超过并发上限而排队的请求数
+     */
+    public int queuedCallCount() {
+        return queuedCallCount;
+    }
+
+    /**
+     * @return this - other，瞬时值保留当前快照的值
+     */
+    public ConnectionStats minus(ConnectionStats other) {
+        return new ConnectionStats(
+                Math.max(0, callCount - other.callCount),
+                Math.max(0, newConnectionCount - other.newConnectionCount),
+                Math.max(0, reusedConnectionCount - other.reusedConnectionCount),
+                Math.max(0, failedConnectCount - other.failedConnectCount),
+                Math.max(0, tlsHandshakeCount - other.tlsHandshakeCount),
+                Math.max(0, http2ConnectionCount - other.http2ConnectionCount),
+                Math.max(0, totalConnectTime - other.totalConnectTime),
+                Math.max(0, totalTlsTime - other.totalTlsTime),
+                idleConnectionCount, connectionCount, runningCallCount, queuedCallCount);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" +
+                "callCount=" + callCount +
+                ", newConnectionCount=" + newConnectionCount +
+                ", reusedConnectionCount=" + reusedConnectionCount +
+                ", failedConnectCount=" + failedConnectCount +
+                ", tlsHandshakeCount=" + tlsHandshakeCount +
+                ", http2ConnectionCount=" + http2ConnectionCount +
+                ", averageConnectTime=" + averageConnectTime() +
+                ", averageTlsTime=" + averageTlsTime() +
+                ", idleConnectionCount=" + idleConnectionCount +
+                ", connectionCount=" + connectionCount +
+                ", runningCallCount=" + runningCallCount +
+                ", queuedCallCount=" + queuedCallCount +
+                '}';
+    }
+}
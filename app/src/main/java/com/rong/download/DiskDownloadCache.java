@@ -0,0 +1,345 @@
+package com.rong.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 磁盘上的下载缓存，保存下载完成且校验通过的文件及其ETag、Last-Modified，容量按LRU淘汰
+ *
+ * <p>再次下载同一url时用If-None-Match、If-Modified-Since发起条件请求，服务器返回304时
+ * 直接从缓存复制到保存位置，不传输文件内容。
+ *
+ * <p>索引保存在目录下的 journal 中，追加写入 PUT、REMOVE、READ 记录，打开时按顺序回放恢复访问顺序，
+ * 冗余记录过多时重写。容量以KB为单位计入 {@link #sizeOf}。
+ */
+public final class DiskDownloadCache extends LruCache<String, DiskDownloadCache.Entry> {
+
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final int MAGIC = 0x52444443;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_READ = 3;
+
+    /**
+     * 冗余记录超过该数量且超过条目数时重写journal
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File directory;
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, Entry> entries;//重写journal时使用
+    private final Object journalLock = new Object();
+    private DataOutputStream journal;
+    private int redundantOps;
+
+    private DiskDownloadCache(File directory, long maxBytes) {
+        super((int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / 1024)));
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 打开directory下的缓存，回放journal并删除索引中没有的文件
+     * @param maxBytes 缓存文件的总大小上限
+     */
+    public static DiskDownloadCache open(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        final DiskDownloadCache cache = new DiskDownloadCache(directory, maxBytes);
+        cache.readJournal();
+        cache.removeOrphans();
+        synchronized (cache.journalLock) {
+            cache.rebuildJournal();
+        }
+        return cache;
+    }
+
+    /**
+     * @return url对应的缓存，没有或文件已丢失时返回null
+     */
+    public Entry lookup(String url) {
+        final Entry entry = get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (!fileOf(entry).exists()) {
+            remove(url);
+            return null;
+        }
+        appendRecord(OP_READ, url, null);
+        return entry;
+    }
+
+    /**
+     * 把缓存的文件复制到target，先写临时文件再重命名，不会留下不完整的target
+     * @return 复制失败时返回false
+     */
+    public boolean copyTo(Entry entry, File target) {
+        final File tmp = new File(target.getPath() + ".tmp");
+        try {
+            copy(fileOf(entry), tmp);
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot replace " + target);
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot rename " + tmp + " to " + target);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * 把下载完成的文件复制到缓存中，缓存中已有相同版本时不重复复制
+     * @param etag 强ETag，与lastModified至少有一个不为null
+     */
+    public void store(String url, String etag, String lastModified, File source) {
+        final long length = source.length();
+        if ((etag == null && lastModified == null) || length <= 0 || length > maxBytes) {
+            return;
+        }
+        final Entry existing = entries.get(url);
+        if (existing != null && existing.length == length && equal(existing.etag, etag)
+                && equal(existing.lastModified, lastModified) && fileOf(existing).exists()) {
+            return;
+        }
+        final Entry entry = new Entry(url, etag, lastModified, length,
+                Integer.toHexString(url.hashCode()) + "-" + Long.toHexString(System.nanoTime()));
+        try {
+            copy(source, fileOf(entry));
+        } catch (IOException e) {
+            e.printStackTrace();
+            fileOf(entry).delete();
+            return;
+        }
+        entries.put(url, entry);
+        put(url, entry);
+        appendRecord(OP_PUT, url, entry);
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry value) {
+        return (int) Math.min(Integer.MAX_VALUE, (value.length + 1023) / 1024);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+        fileOf(oldValue).delete();
+        if (newValue == null) {
+            entries.remove(key, oldValue);
+            appendRecord(OP_REMOVE, key, null);
+        } else {
+            synchronized (journalLock) {
+                redundantOps++;
+            }
+        }
+    }
+
+    private File fileOf(Entry entry) {
+        return new File(directory, entry.fileName);
+    }
+
+    private void readJournal() throws IOException {
+        final File file = new File(directory, JOURNAL);
+        if (!file.exists()) {
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            while (true) {
+                final byte op = in.readByte();
+                final String url = in.readUTF();
+                if (op == OP_PUT) {
+                    final String etag = in.readUTF();
+                    final String lastModified = in.readUTF();
+                    final long length = in.readLong();
+                    final String fileName = in.readUTF();
+                    final Entry entry = new Entry(url, etag.isEmpty() ? null : etag,
+                            lastModified.isEmpty() ? null : lastModified, length, fileName);
+                    entries.put(url, entry);
+                    put(url, entry);
+                } else if (op == OP_REMOVE) {
+                    remove(url);
+                } else if (op == OP_READ) {
+                    get(url);
+                } else {
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            //最后一条记录不完整，丢弃
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 删除索引中没有的文件和文件已丢失的条目
+     */
+    private void removeOrphans() {
+        final Set<String> fileNames = new HashSet<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (fileOf(entry).exists()) {
+                fileNames.add(entry.fileName);
+            } else {
+                remove(entry.url);
+            }
+        }
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.equals(JOURNAL) && !fileNames.contains(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void appendRecord(byte op, String url, Entry entry) {
+        synchronized (journalLock) {
+            if (journal == null) {
+                return;
+            }
+            try {
+                writeRecord(journal, op, url, entry);
+                journal.flush();
+                if (op != OP_PUT) {
+                    redundantOps++;
+                }
+                if (redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+                    rebuildJournal();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 只保留当前条目的PUT记录重写journal，调用时持有journalLock
+     */
+    private void rebuildJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        final File tmp = new File(directory, JOURNAL_TMP);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final List<Entry> current = new ArrayList<>(entries.values());
+            for (Entry entry : current) {
+                writeRecord(out, OP_PUT, entry.url, entry);
+            }
+        } finally {
+            out.close();
+        }
+        final File file = new File(directory, JOURNAL);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        redundantOps = 0;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String url, Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(url);
+        if (op == OP_PUT) {
+            out.writeUTF(entry.etag != null ? entry.etag : "");
+            out.writeUTF(entry.lastModified != null ? entry.lastModified : "");
+            out.writeLong(entry.length);
+            out.writeUTF(entry.fileName);
+        }
+    }
+
+    /**
+     * 通过FileChannel.transferTo复制，数据不经过Java堆
+     */
+    private static void copy(File source, File target) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            final RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                final FileChannel src = in.getChannel();
+                final FileChannel dst = out.getChannel();
+                final long length = src.size();
+                out.setLength(length);
+                long position = 0;
+                while (position < length) {
+                    position += src.transferTo(position, length - position, dst);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 缓存的一个文件
+     */
+    public static final class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long length;
+        final String fileName;//缓存目录中的文件名
+
+        Entry(String url, String etag, String lastModified, long length, String fileName) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "url='" + url + '\'' +
+                    ", etag='" + etag + '\'' +
+                    ", lastModified='" + lastModified + '\'' +
+                    ", length=" + length +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.rong.download;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dns;
+
+/**
+ * 带过期时间的DNS缓存，任务入队时提前解析，开始下载时直接命中
+ *
+ * <p>解析结果保存在 {@link LruCache} 中，写入后经过ttl过期，过期后下一次查询重新解析；
+ * 解析失败不缓存，交给okhttp按连接失败处理。同一个host同时只有一次解析，其余的查询等待这次的结果。
+ */
+public final class DnsCache implements Dns {
+
+    public static final int DEFAULT_MAX_HOSTS = 64;
+    public static final long DEFAULT_TTL_SECONDS = 60;
+
+    private final Dns delegate;
+    private final LruCache<String, List<InetAddress>> cache;
+    private final ConcurrentHashMap<String, LoadFuture<List<InetAddress>>> inFlight = new ConcurrentHashMap<>();
+
+    public DnsCache() {
+        this(Dns.SYSTEM, DEFAULT_MAX_HOSTS, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param delegate 实际执行解析的Dns
+     * @param maxHosts 最多缓存的host数
+     * @param ttl 解析结果的有效期
+     */
+    public DnsCache(Dns delegate, int maxHosts, long ttl, TimeUnit unit) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate == null");
+        }
+        this.delegate = delegate;
+        this.cache = new LruCache<>(maxHosts);
+        cache.setExpireAfterWrite(ttl, unit);
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        if (hostname == null) {
+            throw new UnknownHostException("hostname == null");
+        }
+        List<InetAddress> addresses = cache.get(hostname);
+        if (addresses != null) {
+            return addresses;
+        }
+        final LoadFuture<List<InetAddress>> future = new LoadFuture<>();
+        final LoadFuture<List<InetAddress>> existing = inFlight.putIfAbsent(hostname, future);
+        if (existing != null) {
+            return await(hostname, existing);
+        }
+        try {
+            addresses = delegate.lookup(hostname);
+            if (addresses != null && !addresses.isEmpty()) {
+                addresses = Collections.unmodifiableList(addresses);
+                cache.put(hostname, addresses);
+            }
+            future.complete(addresses);
+            return addresses;
+        } catch (UnknownHostException | RuntimeException e) {
+            future.fail(e);
+            throw e;
+        } finally {
+            //先放入缓存再移除，之后的查询要么命中缓存，要么等待这次的结果
+            inFlight.remove(hostname, future);
+        }
+    }
+
+    /**
+     * 等待其他线程对同一个host的解析
+     */
+    private static List<InetAddress> await(String hostname, LoadFuture<List<InetAddress>> future)
+            throws UnknownHostException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unknownHost(hostname, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) {
+                throw (UnknownHostException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw unknownHost(hostname, cause);
+        }
+    }
+
+    private static UnknownHostException unknownHost(String hostname, Throwable cause) {
+        final UnknownHostException e = new UnknownHostException(hostname);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * 丢弃hostname的解析结果，连接失败时调用，下一次查询重新解析
+     */
+    public void invalidate(String hostname) {
+        cache.remove(hostname);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
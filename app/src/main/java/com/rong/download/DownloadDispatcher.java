@@ -0,0 +1,324 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 多任务下载调度，限制全局和单个host的并发连接数
+ *
+ * <p>有空闲连接时先分给已经开始下载的任务，没有任务需要时再从等待队列中取出新任务，
+ * 探测Range也占用一个连接。同优先级的任务之间：
+ * {@link #POLICY_FIFO} 优先把连接分给最早开始的任务，
+ * {@link #POLICY_FAIR_SHARE} 优先把连接分给当前连接数最少的任务。
+ *
+ * <p>等待队列按优先级排序，高优先级的等待任务先于低优先级的下载中任务拿到连接。
+ * 连接已满且有更高优先级的任务需要连接时，暂停最低优先级任务中的一个分段：
+ * 分段写完已预留的部分就结束并记录到下载日志，让出连接，未下载的区间等有空闲连接时再继续。
+ *
+ * <p>host的连接数按分段实际请求的镜像统计，探测按任务的主地址统计；
+ * 有多个镜像的任务在一个host满了以后还可以从其他镜像拿到连接。
+ */
+public final class DownloadDispatcher {
+
+    public static final int POLICY_FIFO = 0;
+    public static final int POLICY_FAIR_SHARE = 1;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+
+    /**
+     * 调度结果的执行者
+     */
+    public interface Callback {
+        /**
+         * 探测Range并创建SegmentScheduler，结束后必须调用{@link #onProbeFinished}
+         */
+        void executeProbe(FileTask fileTask);
+
+        /**
+         * 下载分段，结束后必须调用{@link #onFileTmpFinished}
+         */
+        void executeFileTmp(FileTask fileTask, FileTmp fileTmp);
+    }
+
+    private final Callback mCallback;
+    private final TreeSet<FileTask> waitingTasks;//等待中的任务，按优先级和创建顺序排序
+    private final List<FileTask> runningTasks;//已经开始的任务，按开始顺序
+    private final Map<FileTask, Integer> taskConnections;
+    private final Map<String, Integer> hostConnections;
+    private int runningConnections;
+    private final Set<FileTmp> preempting;//已暂停、还没有让出连接的分段
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int policy = POLICY_FIFO;
+    private boolean started;
+
+    public DownloadDispatcher(Callback callback) {
+        if (callback == null) {
+            throw new NullPointerException("DownloadDispatcher callback is null");
+        }
+        this.mCallback = callback;
+        this.waitingTasks = new TreeSet<>(new Comparator<FileTask>() {
+            @Override
+            public int compare(FileTask o1, FileTask o2) {
+                if (o1.priority != o2.priority) {
+                    return o1.priority > o2.priority ? -1 : 1;
+                }
+                return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+            }
+        });
+        this.runningTasks = new ArrayList<>();
+        this.taskConnections = new HashMap<>();
+        this.hostConnections = new HashMap<>();
+        this.preempting = new HashSet<>();
+    }
+
+    /**
+     * @param maxConnections 全局最大连接数
+     * @param maxConnectionsPerHost 单个host的最大连接数
+     */
+    public void setMaxConnections(int maxConnections, int maxConnectionsPerHost) {
+        if (maxConnections <= 0 || maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnections <= 0");
+        }
+        synchronized (this) {
+            this.maxConnections = maxConnections;
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+        }
+        dispatch();
+    }
+
+    /**
+     * @param policy {@link #POLICY_FIFO} 或 {@link #POLICY_FAIR_SHARE}
+     */
+    public synchronized void setPolicy(int policy) {
+        if (policy != POLICY_FIFO && policy != POLICY_FAIR_SHARE) {
+            throw new IllegalArgumentException("Unknown policy " + policy);
+        }
+        this.policy = policy;
+    }
+
+    public void enqueue(FileTask fileTask) {
+        synchronized (this) {
+            waitingTasks.add(fileTask);
+        }
+        dispatch();
+    }
+
+    /**
+     * 开始调度，之后加入的任务有空闲连接时自动开始
+     */
+    public void start() {
+        synchronized (this) {
+            started = true;
+        }
+        dispatch();
+    }
+
+    /**
+     * 任务完成或失败，不再给它分配连接
+     */
+    public synchronized void remove(FileTask fileTask) {
+        runningTasks.remove(fileTask);
+        waitingTasks.remove(fileTask);
+    }
+
+    public void onProbeFinished(FileTask fileTask) {
+        release(fileTask, fileTask.host);
+        dispatch();
+    }
+
+    public void onFileTmpFinished(FileTask fileTask, FileTmp fileTmp) {
+        synchronized (this) {
+            preempting.remove(fileTmp);
+        }
+        release(fileTask, HttpUtils.hostOf(fileTmp.downloadUrl));
+        dispatch();
+    }
+
+    public synchronized int runningConnections() {
+        return runningConnections;
+    }
+
+    /**
+     * 把空闲的连接分配出去，回调在锁外执行
+     */
+    public void dispatch() {
+        final List<FileTask> probes = new ArrayList<>();
+        final List<FileTask> fileTasks = new ArrayList<>();
+        final List<FileTmp> fileTmps = new ArrayList<>();
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            while (runningConnections < maxConnections) {
+                final FileTask waiting = peekWaitingTask();
+                FileTask fileTask = null;
+                FileTmp fileTmp = null;
+                for (FileTask candidate : orderedTasks()) {
+                    if (waiting != null && candidate.priority < waiting.priority) {
+                        break;
+                    }
+                    final SegmentScheduler scheduler = candidate.getScheduler();
+                    if (scheduler == null) {
+                        continue;
+                    }
+                    fileTmp = scheduler.next(fullHosts());
+                    if (fileTmp != null) {
+                        fileTask = candidate;
+                        break;
+                    }
+                }
+                if (fileTask != null) {
+                    acquire(fileTask, HttpUtils.hostOf(fileTmp.downloadUrl));
+                    fileTasks.add(fileTask);
+                    fileTmps.add(fileTmp);
+                    continue;
+                }
+                if (waiting == null) {
+                    break;
+                }
+                waitingTasks.remove(waiting);
+                runningTasks.add(waiting);
+                acquire(waiting, waiting.host);
+                probes.add(waiting);
+            }
+            if (runningConnections >= maxConnections) {
+                preempt();
+            }
+        }
+        for (FileTask fileTask : probes) {
+            mCallback.executeProbe(fileTask);
+        }
+        for (int i = 0; i < fileTmps.size(); i++) {
+            mCallback.executeFileTmp(fileTasks.get(i), fileTmps.get(i));
+        }
+    }
+
+    /**
+     * 按优先级从高到低排序，同优先级按策略排序
+     */
+    private List<FileTask> orderedTasks() {
+        final List<FileTask> tasks = new ArrayList<>(runningTasks);
+        Collections.sort(tasks, new Comparator<FileTask>() {
+            @Override
+            public int compare(FileTask o1, FileTask o2) {
+                if (o1.priority != o2.priority) {
+                    return o1.priority > o2.priority ? -1 : 1;
+                }
+                if (policy == POLICY_FAIR_SHARE) {
+                    return count(taskConnections, o1) - count(taskConnections, o2);
+                }
+                return 0;
+            }
+        });
+        return tasks;
+    }
+
+    /**
+     * @return 优先级最高且host还有空闲连接的等待任务
+     */
+    private FileTask peekWaitingTask() {
+        for (FileTask fileTask : waitingTasks) {
+            if (count(hostConnections, fileTask.host) < maxConnectionsPerHost) {
+                return fileTask;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 连接已满时，如果有更高优先级的任务需要连接，暂停最低优先级任务的一个分段。
+     * 每次只暂停一个，被暂停的分段结束、让出的连接被分配后再决定是否继续暂停
+     */
+    private void preempt() {
+        if (!preempting.isEmpty()) {
+            return;
+        }
+        int demand = Integer.MIN_VALUE;
+        final FileTask waiting = peekWaitingTask();
+        if (waiting != null) {
+            demand = waiting.priority;
+        }
+        final Set<String> fullHosts = fullHosts();
+        for (FileTask fileTask : runningTasks) {
+            final SegmentScheduler scheduler = fileTask.getScheduler();
+            if (fileTask.priority > demand && scheduler != null && scheduler.wantsConnection(fullHosts)) {
+                demand = fileTask.priority;
+            }
+        }
+        if (demand == Integer.MIN_VALUE) {
+            return;
+        }
+        final List<FileTask> victims = new ArrayList<>(runningTasks);
+        Collections.sort(victims, new Comparator<FileTask>() {
+            @Override
+            public int compare(FileTask o1, FileTask o2) {
+                if (o1.priority != o2.priority) {
+                    return o1.priority < o2.priority ? -1 : 1;
+                }
+                return o1.sequence > o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+            }
+        });
+        for (FileTask victim : victims) {
+            if (victim.priority >= demand) {
+                break;
+            }
+            final SegmentScheduler scheduler = victim.getScheduler();
+            if (scheduler == null || count(taskConnections, victim) <= 0) {
+                continue;
+            }
+            final FileTmp paused = scheduler.preempt();
+            if (paused != null) {
+                preempting.add(paused);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 连接数已达到上限的host
+     */
+    private Set<String> fullHosts() {
+        final Set<String> hosts = new HashSet<>();
+        for (Map.Entry<String, Integer> entry : hostConnections.entrySet()) {
+            if (entry.getValue() >= maxConnectionsPerHost) {
+                hosts.add(entry.getKey());
+            }
+        }
+        return hosts;
+    }
+
+    private void acquire(FileTask fileTask, String host) {
+        runningConnections++;
+        taskConnections.put(fileTask, count(taskConnections, fileTask) + 1);
+        hostConnections.put(host, count(hostConnections, host) + 1);
+    }
+
+    private synchronized void release(FileTask fileTask, String host) {
+        runningConnections--;
+        decrement(taskConnections, fileTask);
+        decrement(hostConnections, host);
+    }
+
+    private static <K> int count(Map<K, Integer> map, K key) {
+        final Integer count = map.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static <K> void decrement(Map<K, Integer> map, K key) {
+        final int count = count(map, key) - 1;
+        if (count <= 0) {
+            map.remove(key);
+        } else {
+            map.put(key, count);
+        }
+    }
+}
@@ -13,13 +13,20 @@ public final class DownloadExecutor {
 
     private final String url;
     private final int runId;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final boolean blocking;
     private final DownloadCallback mDownloadCallback;
     private final DownloadFileCallback mDownloadFileCallback;
 
 
-    protected DownloadExecutor(String url, int runId, DownloadFileCallback downloadFileCallback){
+    protected DownloadExecutor(String url, int runId, long rangeStart, long rangeEnd, boolean blocking,
+                               DownloadFileCallback downloadFileCallback){
         this.url = url;
         this.runId = runId;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.blocking = blocking;
         this.mDownloadCallback = new DownloadCallback();
         this.mDownloadFileCallback = downloadFileCallback;
     }
@@ -34,14 +41,42 @@ public final class DownloadExecutor {
     }
 
     protected void run() {
+        if(blocking){
+            runBlocking();
+            return;
+        }
         try {
-            HttpUtils.getInstance().downloadAsyncFile(url,mDownloadCallback);
+            if(isRange()){
+                HttpUtils.getInstance().downloadAsyncFile(url,rangeStart,rangeEnd,mDownloadCallback);
+            }else {
+                HttpUtils.getInstance().downloadAsyncFile(url,mDownloadCallback);
+            }
         } catch (IOException e) {
             //e.printStackTrace();
             mDownloadFileCallback.onFailure(e);
         }
     }
 
+    /**
+     * 在当前线程中同步请求，回调也在当前线程中执行
+     */
+    private void runBlocking() {
+        final Response response;
+        try {
+            response = isRange()
+                    ? HttpUtils.getInstance().downloadSyncFile(url,rangeStart,rangeEnd)
+                    : HttpUtils.getInstance().downloadSyncFile(url);
+        } catch (IOException e) {
+            mDownloadFileCallback.onFailure(e);
+            return;
+        }
+        mDownloadCallback.deliver(response);
+    }
+
+    private boolean isRange(){
+        return rangeStart >= 0 && rangeEnd > rangeStart;
+    }
+
 
     /**
      * okhttp回调接口
@@ -55,6 +90,25 @@ public final class DownloadExecutor {
 
         @Override
         public void onResponse(Call call, Response response) throws IOException {
+            deliver(response);
+        }
+
+        /**
+         * 检查响应码和Content-Range，通过后交给 {@link DownloadFileCallback#onResponse}
+         */
+        void deliver(Response response) {
+            if(!response.isSuccessful()){
+                response.close();
+                mDownloadFileCallback.onFailure(new IOException("Unexpected code " + response.code() + " for " + url));
+                return;
+            }
+            //服务器忽略Range返回200时不能当作分段数据写入
+            if(isRange() && !HttpUtils.checkContentRange(response,rangeStart,rangeEnd)){
+                response.close();
+                mDownloadFileCallback.onFailure(new IOException("Range bytes=" + rangeStart + "-" + (rangeEnd - 1)
+                        + " not satisfied, code " + response.code() + " for " + url));
+                return;
+            }
             mDownloadFileCallback.onResponse(url,runId,response);
         }
     }
@@ -64,6 +118,9 @@ public final class DownloadExecutor {
 
         private  String url;
         private  int runId = -1;
+        private  long rangeStart = -1;
+        private  long rangeEnd = -1;
+        private  boolean blocking;
         private  DownloadFileCallback mDownloadFileCallback;
 
         public Builder(){
@@ -79,6 +136,25 @@ public final class DownloadExecutor {
             return this;
         }
 
+        /**
+         * 设置下载区间，不设置则下载整个文件
+         * @param rangeStart 起始位置(包含)
+         * @param rangeEnd 结束位置(不包含)
+         */
+        public DownloadExecutor.Builder setRange(long rangeStart,long rangeEnd) {
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            return this;
+        }
+
+        /**
+         * @param blocking 为true时在调用 {@link #run} 的线程中同步请求和回调，不经过okhttp的Dispatcher线程
+         */
+        public DownloadExecutor.Builder setBlocking(boolean blocking) {
+            this.blocking = blocking;
+            return this;
+        }
+
         public DownloadExecutor.Builder setDownloadFileCallback(DownloadFileCallback mDownloadFileCallback) {
             this.mDownloadFileCallback = mDownloadFileCallback;
             return this;
@@ -94,8 +170,11 @@ public final class DownloadExecutor {
             if(runId == -1){
                 throw new NullPointerException("DownloadExecutor runId is -1");
             }
+            if(rangeStart != -1 && (rangeStart < 0 || rangeEnd <= rangeStart)){
+                throw new IllegalArgumentException("DownloadExecutor range is illegal");
+            }
 
-            DownloadExecutor executor = new DownloadExecutor(url,runId,mDownloadFileCallback);
+            DownloadExecutor executor = new DownloadExecutor(url,runId,rangeStart,rangeEnd,blocking,mDownloadFileCallback);
             return executor;
         }
 
@@ -0,0 +1,290 @@
+package com.rong.download;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 下载日志，记录在目标文件旁的 fileName.journal 中，进程被杀后据此只下载缺失的区间
+ *
+ * <p>文件格式：magic、version、文件长度、url、校验器（强ETag，没有时为Last-Modified），
+ * 之后追加写入已完成区间 [start,end) 的记录。服务器上的文件变化后校验器不同，日志作废，
+ * 避免长度不变时把新旧内容拼在一起。
+ * 记录先缓存在内存中，批量写入：先对目标文件fsync，再写入记录并对日志fsync，
+ * 保证日志中记录的区间在目标文件中一定已经落盘。
+ */
+public final class DownloadJournal {
+
+    private static final int MAGIC = 0x52444A4C;
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".journal";
+    private static final int RECORD_SIZE = 16;
+
+    /**
+     * 缓存的记录数达到该值时写入日志
+     */
+    private static final int SYNC_BATCH = 16;
+    /**
+     * 距离上次写入超过该时长时写入日志
+     */
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final File journalFile;
+    private final File targetFile;
+    private final List<long[]> completed;
+    private final List<long[]> pending;
+    private RandomAccessFile journal;
+    private long lastSyncTime;
+
+    private DownloadJournal(File journalFile, File targetFile, List<long[]> completed) {
+        this.journalFile = journalFile;
+        this.targetFile = targetFile;
+        this.completed = completed;
+        this.pending = new ArrayList<>();
+        this.lastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 打开fileTask对应的日志，日志不存在或url、长度、校验器不一致时重新创建
+     * @param targetLength 预分配之前目标文件的长度，不存在时为-1；与文件长度不一致说明目标文件被删除或重建过，
+     *                     日志中的区间已经不在文件中，不能续传
+     */
+    public static DownloadJournal open(FileTask fileTask, long targetLength) throws IOException {
+        final File targetFile = new File(fileTask.savePath, fileTask.fileName);
+        final File journalFile = new File(fileTask.savePath, fileTask.fileName + SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        List<long[]> completed = null;
+        try {
+            if (raf.length() > 0 && targetLength == fileTask.length) {
+                completed = readRecords(raf, fileTask);
+            }
+            if (completed != null) {
+                //丢弃崩溃时写了一半的记录
+                raf.setLength(raf.getFilePointer());
+            } else {
+                completed = new ArrayList<>();
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(fileTask.length);
+                raf.writeUTF(fileTask.url);
+                raf.writeUTF(validator(fileTask));
+                raf.getFD().sync();
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        final DownloadJournal downloadJournal = new DownloadJournal(journalFile, targetFile, completed);
+        downloadJournal.journal = raf;
+        return downloadJournal;
+    }
+
+    /**
+     * 读取日志中的记录，结束后文件指针停在最后一条完整记录之后
+     * @return 已完成的区间，日志与fileTask不一致时返回null
+     */
+    private static List<long[]> readRecords(RandomAccessFile raf, FileTask fileTask) throws IOException {
+        try {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION
+                    || raf.readLong() != fileTask.length || !fileTask.url.equals(raf.readUTF())
+                    || !validator(fileTask).equals(raf.readUTF())) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        while (raf.length() - raf.getFilePointer() >= RECORD_SIZE) {
+            long start = raf.readLong();
+            final long end = raf.readLong();
+            final boolean removed = start < 0;
+            if (removed) {
+                start = -start - 1;
+            }
+            if (end <= start || end > fileTask.length) {
+                return null;
+            }
+            if (removed) {
+                ranges = subtract(merge(ranges), start, end);
+            } else {
+                ranges.add(new long[]{start, end});
+            }
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * @return 标识服务器上文件版本的强ETag，没有时为Last-Modified，都没有时为空字符串
+     */
+    private static String validator(FileTask fileTask) {
+        final String etag = fileTask.getETag();
+        if (etag != null) {
+            return etag;
+        }
+        final String lastModified = fileTask.getLastModified();
+        return lastModified != null ? lastModified : "";
+    }
+
+    /**
+     * 从已合并的区间中扣除 [start,end)
+     */
+    private static List<long[]> subtract(List<long[]> ranges, long start, long end) {
+        final List<long[]> result = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (range[1] <= start || range[0] >= end) {
+                result.add(range);
+                continue;
+            }
+            if (range[0] < start) {
+                result.add(new long[]{range[0], start});
+            }
+            if (range[1] > end) {
+                result.add(new long[]{end, range[1]});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 合并重叠和相邻的区间
+     */
+    private static List<long[]> merge(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+        final List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (!merged.isEmpty() && merged.get(merged.size() - 1)[1] >= range[0]) {
+                final long[] last = merged.get(merged.size() - 1);
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 记录区间 [start,end) 已写入目标文件，按批次写入日志
+     */
+    public synchronized void append(long start, long end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        completed.add(new long[]{start, end});
+        pending.add(new long[]{start, end});
+        if (pending.size() >= SYNC_BATCH || System.currentTimeMillis() - lastSyncTime >= SYNC_INTERVAL_MS) {
+            sync();
+        }
+    }
+
+    /**
+     * 区间 [start,end) 校验失败，需要重新下载
+     */
+    public synchronized void invalidate(long start, long end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        final List<long[]> remaining = subtract(merge(completed), start, end);
+        completed.clear();
+        completed.addAll(remaining);
+        pending.add(new long[]{-start - 1, end});
+        sync();
+    }
+
+    /**
+     * 目标文件落盘后把缓存的记录写入日志
+     */
+    public synchronized void sync() throws IOException {
+        lastSyncTime = System.currentTimeMillis();
+        if (pending.isEmpty() || journal == null) {
+            return;
+        }
+        RandomAccessFile target = new RandomAccessFile(targetFile, "rw");
+        try {
+            target.getChannel().force(false);
+        } finally {
+            target.close();
+        }
+        final ByteBuffer records = ByteBuffer.allocate(pending.size() * RECORD_SIZE);
+        for (long[] range : pending) {
+            records.putLong(range[0]);
+            records.putLong(range[1]);
+        }
+        journal.write(records.array());
+        journal.getFD().sync();
+        pending.clear();
+    }
+
+    /**
+     * @return 已完成的字节数
+     */
+    public synchronized long completedLength() {
+        long length = 0;
+        for (long[] range : merge(new ArrayList<>(completed))) {
+            length += range[1] - range[0];
+        }
+        return length;
+    }
+
+    /**
+     * @return 已完成的区间 [start,end)，按起始位置排序
+     */
+    public synchronized List<long[]> completedRanges() {
+        return merge(new ArrayList<>(completed));
+    }
+
+    /**
+     * @return 还未下载的区间 [start,end)，按起始位置排序
+     */
+    public synchronized List<long[]> missingRanges(long length) {
+        final List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (long[] range : merge(new ArrayList<>(completed))) {
+            if (range[0] > position) {
+                missing.add(new long[]{position, range[0]});
+            }
+            position = Math.max(position, range[1]);
+        }
+        if (position < length) {
+            missing.add(new long[]{position, length});
+        }
+        return missing;
+    }
+
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            sync();
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * 下载完成后删除日志
+     */
+    public synchronized void delete() {
+        pending.clear();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        journal = null;
+        if (journalFile.exists()) {
+            journalFile.delete();
+        }
+    }
+}
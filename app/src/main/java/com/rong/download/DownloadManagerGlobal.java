@@ -1,35 +1,95 @@
 package com.rong.download;
 
 import android.support.v4.text.TextUtilsCompat;
-import com.rong.download.model.cp.AbstractConsumer;
 import com.rong.download.model.cp.AbstractProducer;
-import com.rong.download.model.cp.CPModel;
-import com.rong.download.model.cp.Consumer;
 import com.rong.download.model.cp.Producer;
 import okhttp3.Response;
 
 import java.io.*;
-import java.util.concurrent.BlockingDeque;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * 下载
  */
-public final class DownloadManagerGlobal implements CPModel,IDownloadManager{
+public final class DownloadManagerGlobal implements IDownloadManager{
 
+    /**
+     * 通过FileChannel按偏移位置写入
+     */
+    public static final int WRITE_MODE_CHANNEL = 0;
+    /**
+     * 通过内存映射写入，适合大文件，长度未知的单线程下载仍使用FileChannel
+     */
+    public static final int WRITE_MODE_MMAP = 1;
+    /**
+     * 响应体作为 {@link SegmentPublisher} 按需读取，在磁盘线程池中写入，
+     * 等待磁盘时不占用线程，磁盘慢时通过背压暂停网络读取
+     */
+    public static final int WRITE_MODE_STREAM = 2;
+    /**
+     * 分段内容缓存默认占用的直接内存
+     */
+    public static final int DEFAULT_SEGMENT_CACHE_SIZE = 8 * 1024 * 1024;
 
-    private final BlockingDeque<FileTmp> fileTmpQueue;
-    private final BlockingDeque<FileTask> fileTaskDeque;
+    private final DownloadDispatcher mDispatcher;
     private DownloadFileListener mDownloadFileListener;
     private  static volatile DownloadManagerGlobal sDownloadManagerGlobal = null;
     private final ConcurrentHashMap<String,FileTask> fileTaskMap;
     private long maxCacheFileSize = 10240 * 10240;
+    private volatile int writeMode = WRITE_MODE_CHANNEL;
+    private volatile boolean forceOnUnmap = false;
+    private volatile SegmentCache segmentCache = new SegmentCache(DEFAULT_SEGMENT_CACHE_SIZE);
+    private volatile DiskDownloadCache diskCache;
+    private volatile ExecutorService virtualThreadExecutor;//虚拟线程模式下探测和分段下载使用的ExecutorService
+    private volatile boolean prewarmConnections = true;
 
     private DownloadManagerGlobal(){
-        fileTmpQueue = new LinkedBlockingDeque<>();
-        fileTaskDeque = new LinkedBlockingDeque<>();
         fileTaskMap = new ConcurrentHashMap<>();
+        mDispatcher = new DownloadDispatcher(new DownloadDispatcher.Callback() {
+            @Override
+            public void executeProbe(final FileTask fileTask) {
+                //探测Range需要网络请求，放到网络线程池中执行
+                try {
+                    executeNetwork(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                prepareFileTask(fileTask);
+                            }finally {
+                                mDispatcher.onProbeFinished(fileTask);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //线程池排满超时，释放连接，任务失败
+                    try {
+                        failFileTask(fileTask,e);
+                    }finally {
+                        mDispatcher.onProbeFinished(fileTask);
+                    }
+                }
+            }
+
+            @Override
+            public void executeFileTmp(FileTask fileTask, FileTmp fileTmp) {
+                try {
+                    executeNetwork(createProducer(fileTask,fileTmp));
+                } catch (RejectedExecutionException e) {
+                    try {
+                        onFileTmpFailure(fileTask,fileTmp,fileTmp.startPath,e);
+                    }finally {
+                        mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+                    }
+                }
+            }
+        });
     }
 
     public static DownloadManagerGlobal instance(){
@@ -43,27 +103,84 @@ public final class DownloadManagerGlobal implements CPModel,IDownloadManager{
         return sDownloadManagerGlobal;
     }
 
+    public Runnable createProducer(FileTask fileTask,FileTmp fileTmp) {
+        return new ProducerDownloadImpl(fileTask,fileTmp);
+    }
+
+    /**
+     * 网络任务在虚拟线程中执行，没有开启虚拟线程模式时放到网络线程池中执行
+     * @throws RejectedExecutionException 线程池排满超时或虚拟线程的ExecutorService已关闭
+     */
+    private void executeNetwork(Runnable runnable) {
+        final ExecutorService executor = virtualThreadExecutor;
+        if(executor != null){
+            executor.execute(runnable);
+        }else {
+            ThreadManager.getIoPool().execute(runnable);
+        }
+    }
+
     @Override
-    public ConsumerDownloadImpl createConsumer() {
-        return new ConsumerDownloadImpl();
+    public void downloadFile(String url, String md5, long length, String savePath, String fileName) {
+        downloadFile(url,md5,length,savePath,fileName,PRIORITY_NORMAL);
     }
 
-    public Runnable createProducer(FileTmp fileTmp) {
-        return new ProducerDownloadImpl(fileTmp);
+    @Override
+    public void downloadFile(String url, String md5, long length, String savePath, String fileName, int priority) {
+        downloadFile(url,md5,length,savePath,fileName,priority,null);
     }
+
     @Override
-    public Runnable createProducer() {
-        return new ProducerDownloadImpl(null);
+    public void downloadFile(String url, String md5, long length, String savePath, String fileName, int priority,
+                             ChunkManifest manifest) {
+        if(url == null){
+            return;
+        }
+        downloadFile(Collections.singletonList(url),md5,length,savePath,fileName,priority,manifest);
     }
 
     @Override
-    public void downloadFile(String url, String md5, long length, String savePath, String fileName) {
-        if(url == null ||"".equals(url.trim()) || fileTaskMap.containsKey(url.trim())){
+    public void downloadFile(List<String> urls, String md5, long length, String savePath, String fileName, int priority,
+                             ChunkManifest manifest) {
+        if(urls == null){
+            return;
+        }
+        final List<String> mirrors = new ArrayList<>();
+        for (String url : urls) {
+            if(url != null && !"".equals(url.trim()) && !mirrors.contains(url.trim())){
+                mirrors.add(url.trim());
+            }
+        }
+        if(mirrors.isEmpty() || fileTaskMap.containsKey(mirrors.get(0))){
             return;
         }
-        final  FileTask fileTask = new FileTask(url,md5,length,savePath,fileName);
-        fileTaskMap.put(url.trim(),fileTask);
-        fileTaskDeque.offer(fileTask);
+        final  FileTask fileTask = new FileTask(mirrors,md5,length,savePath,fileName,priority,manifest);
+        fileTaskMap.put(fileTask.url,fileTask);
+        mDispatcher.enqueue(fileTask);
+        prefetch(fileTask);
+    }
+
+    /**
+     * 任务入队时host已经确定，提前解析DNS并预热连接，开始下载时第一个分段不用再等待握手
+     * 在单独的预取线程池中执行，一次加入大量任务时排不上的直接丢弃，不影响下载
+     */
+    private void prefetch(final FileTask fileTask){
+        final boolean connect = prewarmConnections;
+        ThreadManager.getPrefetchPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String mirror : fileTask.mirrors) {
+                    HttpUtils.getInstance().prefetch(mirror,connect);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param prewarmConnections 任务入队时是否提前建立连接，为false时只提前解析DNS
+     */
+    public void setPrewarmConnections(boolean prewarmConnections) {
+        this.prewarmConnections = prewarmConnections;
     }
 
     @Override
@@ -71,33 +188,279 @@ public final class DownloadManagerGlobal implements CPModel,IDownloadManager{
         this.maxCacheFileSize = maxSize;
     }
 
+    /**
+     * 设置分段写入方式
+     * @param writeMode {@link #WRITE_MODE_CHANNEL}、{@link #WRITE_MODE_MMAP} 或 {@link #WRITE_MODE_STREAM}
+     * @param forceOnUnmap 内存映射方式下每个映射窗口写完后是否立即落盘
+     */
+    public void setWriteMode(int writeMode,boolean forceOnUnmap) {
+        if(writeMode != WRITE_MODE_CHANNEL && writeMode != WRITE_MODE_MMAP && writeMode != WRITE_MODE_STREAM){
+            throw new IllegalArgumentException("Unknown write mode " + writeMode);
+        }
+        this.writeMode = writeMode;
+        this.forceOnUnmap = forceOnUnmap;
+    }
+
+    /**
+     * 设置分段内容缓存的大小，再次下载同一url、ETag和区间的分段时直接从缓存写入
+     * @param maxBytes 占用的最大直接内存，为0时不缓存
+     */
+    public void setSegmentCacheSize(int maxBytes) {
+        final SegmentCache old = segmentCache;
+        segmentCache = maxBytes > 0 ? new SegmentCache(maxBytes) : null;
+        if(old != null){
+            old.evictAll();
+        }
+    }
+
+    /**
+     * 启用磁盘下载缓存，下载完成的文件复制到directory中，
+     * 再次下载时发起条件请求，服务器返回304则直接从缓存复制
+     * @param maxBytes 缓存文件的总大小上限
+     */
+    public void setDiskCache(File directory,long maxBytes) throws IOException {
+        diskCache = DiskDownloadCache.open(directory,maxBytes);
+    }
+
+    /**
+     * 虚拟线程模式：每个分段在自己的虚拟线程中同步请求、阻塞读取并写入，
+     * 不再占用网络线程池的线程，大量并发分段时每个只占用几KB内存。
+     * 只在JDK 21及以上的JVM中可用，通常需要同时用 {@link #setMaxConnections} 提高连接数上限
+     * @return 当前环境不支持虚拟线程时返回false，仍使用网络线程池
+     */
+    public boolean setVirtualThreadMode(boolean enabled) {
+        final ExecutorService old = virtualThreadExecutor;
+        virtualThreadExecutor = enabled ? ThreadManager.newVirtualThreadExecutor() : null;
+        if(old != null){
+            //已提交的分段继续执行完
+            old.shutdown();
+        }
+        return virtualThreadExecutor != null;
+    }
+
+    /**
+     * 设置并发连接数上限
+     * @param maxConnections 全局最大连接数
+     * @param maxConnectionsPerHost 单个host的最大连接数
+     */
+    public void setMaxConnections(int maxConnections,int maxConnectionsPerHost) {
+        mDispatcher.setMaxConnections(maxConnections,maxConnectionsPerHost);
+        //okhttp的Dispatcher也要放开，否则异步请求会在那里排队
+        HttpUtils.getInstance().setDispatcherLimits(Math.max(maxConnections,HttpUtils.DEFAULT_MAX_REQUESTS),maxConnectionsPerHost);
+    }
+
+    /**
+     * 设置同优先级任务之间分配连接的策略
+     * @param policy {@link DownloadDispatcher#POLICY_FIFO} 或 {@link DownloadDispatcher#POLICY_FAIR_SHARE}
+     */
+    public void setDispatchPolicy(int policy) {
+        mDispatcher.setPolicy(policy);
+    }
+
     @Override
     public void startDownload() {
-        FileTask fileTask = fileTaskDeque.peek();
-        if(fileTask != null){
-            long endFileSize = 0l;
-            int threadSize = (int) (fileTask.length / maxCacheFileSize);
-            final long x = fileTask.length%maxCacheFileSize;
-            if(x > 0){
-                threadSize += 1;
-                endFileSize = x;
-            }
-            for(int i =0;i < threadSize ; i++){
-                long startPath ;
-                long endPath ;
-                if(i != threadSize -1){
-                    startPath = i * maxCacheFileSize;
-                    endPath = startPath + maxCacheFileSize;
-                }else {
-                    startPath = i * maxCacheFileSize;
-                    endPath = startPath + endFileSize;
+        mDispatcher.start();
+    }
+
+    /**
+     * 探测服务器是否支持Range，支持则由SegmentScheduler按实测速度分段下载，否则单线程下载整个文件
+     * 磁盘缓存中有该url时先发起条件请求，服务器返回304则在磁盘线程池中从缓存复制，不占用连接
+     */
+    private void prepareFileTask(FileTask fileTask){
+        final DiskDownloadCache diskCache = this.diskCache;
+        final DiskDownloadCache.Entry cached = diskCache != null ? diskCache.lookup(fileTask.url) : null;
+        final HttpUtils.RangeInfo rangeInfo;
+        try {
+            rangeInfo = cached != null
+                    ? HttpUtils.getInstance().probeRange(fileTask.url,cached.etag,cached.lastModified)
+                    : HttpUtils.getInstance().probeRange(fileTask.url);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failFileTask(fileTask,e);
+            return;
+        }
+        if(rangeInfo.notModified && cached != null){
+            if(fileTask.length > 0 && fileTask.length != cached.length){
+                failFileTask(fileTask,new IllegalArgumentException("The length of the file is incorrect"));
+                return;
+            }
+            copyFromDiskCacheAsync(fileTask,diskCache,cached);
+            return;
+        }
+        setupFileTask(fileTask,rangeInfo);
+    }
+
+    /**
+     * 按探测结果创建目标文件和SegmentScheduler
+     * 支持Range时根据下载日志续传，只下载缺失的区间，maxCacheFileSize为单个分段的最大长度
+     * 提供了分块摘要清单时，日志中已完成的块先在CPU线程池中校验一遍，校验失败的块重新下载
+     */
+    private void setupFileTask(final FileTask fileTask,HttpUtils.RangeInfo rangeInfo){
+        if(rangeInfo.contentLength > 0){
+            if(fileTask.length > 0 && fileTask.length != rangeInfo.contentLength){
+                failFileTask(fileTask,new IllegalArgumentException("The length of the file is incorrect"));
+                return;
+            }
+            fileTask.setLength(rangeInfo.contentLength);
+        }
+        fileTask.setETag(rangeInfo.etag);
+        fileTask.setLastModified(rangeInfo.lastModified);
+        //预分配之后长度总是一致，续传前要知道目标文件原来的样子
+        final File targetFile = new File(fileTask.savePath,fileTask.fileName);
+        final long targetLength = targetFile.exists() ? targetFile.length() : -1;
+        try {
+            createTargetFile(fileTask);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failFileTask(fileTask,e);
+            return;
+        }
+        //边下载边计算摘要，完成时不需要再完整读一遍文件
+        fileTask.setDigest(StreamingDigest.create(fileTask.md5,new File(fileTask.savePath,fileTask.fileName)));
+        if(fileTask.manifest != null){
+            if(!fileTask.manifest.matches(fileTask.length)){
+                failFileTask(fileTask,new IllegalArgumentException("The chunk manifest does not match the length of the file"));
+                return;
+            }
+            fileTask.setVerifier(new ChunkVerifier(fileTask.manifest,new File(fileTask.savePath,fileTask.fileName),fileTask.length));
+        }
+        if(!rangeInfo.acceptRanges || fileTask.length <= 0){
+            fileTask.setScheduler(SegmentScheduler.single(fileTask));
+            return;
+        }
+        final List<String> mirrors = checkMirrors(fileTask);
+        final DownloadJournal journal;
+        try {
+            journal = DownloadJournal.open(fileTask,targetLength);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failFileTask(fileTask,e);
+            return;
+        }
+        fileTask.setJournal(journal);
+        final ChunkVerifier verifier = fileTask.getVerifier();
+        final List<long[]> completedRanges = journal.completedRanges();
+        if(verifier == null || completedRanges.isEmpty()){
+            startScheduler(fileTask,journal,mirrors);
+            return;
+        }
+        //校验需要读出已完成的部分计算摘要，不占用网络线程
+        executeOrFail(fileTask,ThreadManager.getCpuPool(),new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (long[] range : completedRanges) {
+                        for (long[] failed : verifier.markCompleted(range[0],range[1])) {
+                            journal.invalidate(failed[0],failed[1]);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failFileTask(fileTask,e);
+                    return;
+                }
+                if(isAlive(fileTask)){
+                    startScheduler(fileTask,journal,mirrors);
+                    mDispatcher.dispatch();
                 }
-                final String downloadUrl = fileTask.url + "" + startPath+ "" + endPath;
-                final String fileName  = fileTask.fileName + "_"+ i + "_tmp";
-                FileTmp fileTmp = new FileTmp(startPath,endPath,fileName,downloadUrl,fileTask.url,i,fileTask.savePath);
-                ThreadManager.getPoolProxy().execute(createProducer(fileTmp));
             }
+        });
+    }
+
+    /**
+     * 探测其余镜像，只保留支持Range、长度与主地址一致、双方都有强ETag时ETag也一致的镜像，
+     * 探测失败的镜像不使用
+     * @return 可以使用的镜像，第一个为主地址
+     */
+    private List<String> checkMirrors(FileTask fileTask){
+        final List<String> mirrors = new ArrayList<>();
+        mirrors.add(fileTask.url);
+        final String etag = fileTask.getETag();
+        for (String mirror : fileTask.mirrors) {
+            if(mirror.equals(fileTask.url)){
+                continue;
+            }
+            try {
+                final HttpUtils.RangeInfo rangeInfo = HttpUtils.getInstance().probeRange(mirror);
+                if(rangeInfo.acceptRanges && rangeInfo.contentLength == fileTask.length
+                        && (etag == null || rangeInfo.etag == null || etag.equals(rangeInfo.etag))){
+                    mirrors.add(mirror);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * 按下载日志创建SegmentScheduler，所有区间都已完成时直接按下载完成处理
+     */
+    private void startScheduler(FileTask fileTask,DownloadJournal journal,List<String> mirrors){
+        //只下载日志中缺失的区间
+        fileTask.setCountLength(journal.completedLength());
+        final List<long[]> missingRanges = journal.missingRanges(fileTask.length);
+        if(missingRanges.isEmpty()){
+            onFileTaskComplete(fileTask);
+            return;
         }
+        fileTask.setScheduler(new SegmentScheduler(fileTask,missingRanges,maxCacheFileSize,mirrors));
+    }
+
+    /**
+     * 在磁盘线程池中从缓存复制，复制失败时重新探测后下载
+     */
+    private void copyFromDiskCacheAsync(final FileTask fileTask,final DiskDownloadCache diskCache,
+                                        final DiskDownloadCache.Entry cached){
+        executeOrFail(fileTask,ThreadManager.getDiskPool(),new Runnable() {
+            @Override
+            public void run() {
+                if(!isAlive(fileTask) || copyFromDiskCache(fileTask,diskCache,cached)){
+                    return;
+                }
+                final HttpUtils.RangeInfo rangeInfo;
+                try {
+                    rangeInfo = HttpUtils.getInstance().probeRange(fileTask.url);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failFileTask(fileTask,e);
+                    return;
+                }
+                setupFileTask(fileTask,rangeInfo);
+                mDispatcher.dispatch();
+            }
+        });
+    }
+
+    /**
+     * 提交到线程池，排满超时被拒绝时任务失败
+     */
+    private void executeOrFail(FileTask fileTask,ThreadManager.ThreadPoolProxy pool,Runnable runnable){
+        try {
+            pool.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            failFileTask(fileTask,e);
+        }
+    }
+
+    /**
+     * 服务器返回304，从磁盘缓存复制到保存位置后按下载完成处理
+     * @return 复制失败时返回false
+     */
+    private boolean copyFromDiskCache(FileTask fileTask,DiskDownloadCache diskCache,DiskDownloadCache.Entry cached){
+        File saveFile = new File(fileTask.savePath);
+        if(!saveFile.exists()){
+            saveFile.mkdirs();
+        }
+        if(!diskCache.copyTo(cached,new File(fileTask.savePath,fileTask.fileName))){
+            return false;
+        }
+        fileTask.setLength(cached.length);
+        fileTask.setETag(cached.etag);
+        fileTask.setLastModified(cached.lastModified);
+        fileTask.setCountLength(cached.length);
+        onFileTaskComplete(fileTask);
+        return true;
     }
 
     @Override
@@ -125,119 +488,205 @@ public final class DownloadManagerGlobal implements CPModel,IDownloadManager{
     }
 
     /**
-     * 下载文件的消费者
+     * 创建目标文件，长度已知时预先分配，各分段直接写入自己的偏移位置
      */
-    private  final class ConsumerDownloadImpl extends AbstractConsumer implements Consumer ,Runnable {
-
-        @Override
-        public void setRunning(boolean running) {
-            super.setSuperRunning(running);
+    private void createTargetFile(FileTask fileTask) throws IOException {
+        File saveFile = new File(fileTask.savePath);
+        if(!saveFile.exists()){
+            saveFile.mkdirs();
         }
-
-        @Override
-        public void consume() throws InterruptedException {
-           final FileTmp fileTmp = fileTmpQueue.take();
-            if(fileTmp != null && fileTaskMap.containsKey(fileTmp.tagUrl)) {
-               final FileTask fileTask =  fileTaskMap.get(fileTmp.tagUrl);
-               if(fileTask != null){
-                   addCacheFile(fileTask,fileTmp);
-               }
+        File targetFile = new File(fileTask.savePath, fileTask.fileName);
+        RandomAccessFile target = null;
+        try {
+            target = new RandomAccessFile(targetFile, "rw");
+            if(fileTask.length > 0){
+                target.setLength(fileTask.length);
             }
-            File file = new File(fileTmp.savePath,fileTmp.fileName);
-            if(file.exists()){
-                file.delete();
+        }finally {
+            if(target != null){
+                target.close();
             }
         }
     }
 
+    private SegmentWriter createSegmentWriter(File file,FileTmp fileTmp,int bufferSize) throws IOException {
+        if(writeMode == WRITE_MODE_MMAP && fileTmp.isRange){
+            return new MappedSegmentWriter(file,fileTmp,MappedSegmentWriter.DEFAULT_WINDOW_SIZE,forceOnUnmap);
+        }
+        return new ChannelSegmentWriter(file,fileTmp,bufferSize);
+    }
 
-    private void addCacheFile(FileTask fileTask,FileTmp fileTmp){
-        File sourceFile = new File(fileTmp.savePath,fileTmp.fileName);
-        if(sourceFile.exists()) {
-            boolean isAddSuccess = false;
-            File targetFile = new File(fileTask.savePath, fileTask.fileName);
-            if (!targetFile.exists()) {
-                try {
-                    targetFile.createNewFile();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    isAddSuccess = false;
-                    synchronized (sDownloadManagerGlobal) {
-                        sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
-                    }
-                    return;
+    /**
+     * 分段写入完成，累计长度达到文件长度后校验md5，否则把测得的速度交给SegmentScheduler
+     * @param size 该分段写入的字节数
+     * @param costMillis 该分段的耗时
+     */
+    private void onFileTmpComplete(FileTask fileTask,FileTmp fileTmp,long size,long costMillis){
+        final long countLength = fileTask.addCountLength(size);
+        final SegmentScheduler scheduler = fileTask.getScheduler();
+        if(scheduler != null){
+            scheduler.onFileTmpComplete(fileTmp,size,costMillis);
+        }
+        if(!fileTmp.isRange || countLength >= fileTask.length){
+            onFileTaskComplete(fileTask);
+        }
+    }
+
+    /**
+     * 文件全部写入完成，删除下载日志后在CPU线程池中校验md5，连接立即让给其他任务
+     */
+    private void onFileTaskComplete(final FileTask fileTask){
+        if(!fileTaskMap.remove(fileTask.url,fileTask)){
+            return;
+        }
+        mDispatcher.remove(fileTask);
+        final DownloadJournal journal = fileTask.getJournal();
+        if(journal != null){
+            journal.delete();
+            fileTask.setJournal(null);
+        }
+        try {
+            ThreadManager.getCpuPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifyFileTask(fileTask);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            //没有校验，不能当作完成
+            fileTask.setDigest(null);
+            fileTask.setVerifier(null);
+            for (SegmentCache.Segment segment : fileTask.takePendingSegments()) {
+                segment.release();
             }
-            FileInputStream fis = null;
-            byte[] buf=new byte[2048];
-            int len = 0;
-            RandomAccessFile target = null;
-            try {
-                target =   new RandomAccessFile(targetFile, "rw");
-                fis = new FileInputStream(sourceFile);
-                long sum=0;
-                final long total=sourceFile.length();
-                target.seek(fileTmp.startPath);
-                while((len = fis.read(buf))!=-1){
-                    target.write(buf);
-                    sum+=len;
-                    int progress=(int)(sum*1.0f/total*100);
-                    //下载中
-                }
-                isAddSuccess = true;
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                synchronized (sDownloadManagerGlobal) {
-                    sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
-                }
-                isAddSuccess = false;
-            } catch (IOException e) {
-                e.printStackTrace();
+            synchronized (sDownloadManagerGlobal) {
+                sDownloadManagerGlobal.onFailure(fileTask.url,e);
+            }
+        }
+    }
+
+    /**
+     * 校验md5，校验通过的内容放入分段缓存，并在磁盘线程池中存入磁盘缓存
+     */
+    private void verifyFileTask(final FileTask fileTask){
+        final File targetFile = new File(fileTask.savePath, fileTask.fileName);
+        final boolean verified = judgeMD5(fileTask,targetFile);
+        fileTask.setDigest(null);
+        fileTask.setVerifier(null);
+        //只缓存校验通过的内容
+        final SegmentCache cache = segmentCache;
+        for (SegmentCache.Segment segment : fileTask.takePendingSegments()) {
+            if(verified && cache != null){
+                cache.put(segment);
+            }else {
+                segment.release();
+            }
+        }
+        if(verified){
+            final DiskDownloadCache diskCache = this.diskCache;
+            if(diskCache == null){
                 synchronized (sDownloadManagerGlobal) {
-                    sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
-                }
-                isAddSuccess = false;
-            }finally {
-                try {
-                    if(target != null){
-                        target.close();
-                    }
-                    if (fis != null){
-                        fis.close();
-                    }
-                }catch (IOException e) {
-                    e.printStackTrace();
+                    sDownloadManagerGlobal.onComplete(fileTask.url);
                 }
+                return;
             }
-            if(isAddSuccess == true){
-                final long countLength = fileTask.getCountLength() + (fileTmp.endPath - fileTmp.startPath);
-                if(sourceFile.exists()){
-                    sourceFile.delete();
-                }
-                fileTaskMap.remove(fileTask.url);
-                if(countLength == fileTask.length){
-                    if(judgeMD5(targetFile,fileTask.md5)){
+            //先存入磁盘缓存再通知完成，通知之后文件可能被移走
+            try {
+                ThreadManager.getDiskPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        diskCache.store(fileTask.url,fileTask.getETag(),fileTask.getLastModified(),targetFile);
                         synchronized (sDownloadManagerGlobal) {
                             sDownloadManagerGlobal.onComplete(fileTask.url);
                         }
-                    }else {
-                        if(targetFile.exists()){
-                            targetFile.delete();
-                        }
-                        synchronized (sDownloadManagerGlobal) {
-                            sDownloadManagerGlobal.onFailure(fileTask.url,new IllegalArgumentException("The content of the file is incorrect"));
-                        }
                     }
-                }else {
-                    fileTask.setCountLength(countLength);
-                    fileTaskMap.put(fileTask.url,fileTask);
+                });
+            } catch (RejectedExecutionException e) {
+                //磁盘线程池排满时不缓存，文件本身已经下载完成
+                synchronized (sDownloadManagerGlobal) {
+                    sDownloadManagerGlobal.onComplete(fileTask.url);
                 }
             }
+        }else {
+            if(targetFile.exists()){
+                targetFile.delete();
+            }
+            synchronized (sDownloadManagerGlobal) {
+                sDownloadManagerGlobal.onFailure(fileTask.url,new IllegalArgumentException("The content of the file is incorrect"));
+            }
         }
     }
 
-    private boolean judgeMD5(File file,String md5){
-        return false;
+    /**
+     * 分段失败，还有其他可用的镜像时剩下的区间换镜像重新下载，否则任务失败
+     * @param written 分段已写入的结束位置
+     */
+    private void onFileTmpFailure(FileTask fileTask,FileTmp fileTmp,long written,Exception e){
+        final SegmentScheduler scheduler = fileTask.getScheduler();
+        if(scheduler != null && scheduler.onFileTmpFailure(fileTmp,written)){
+            //已写入的部分已经记录到下载日志，照常计入已下载长度
+            if(fileTask.addCountLength(written - fileTmp.startPath) >= fileTask.length){
+                onFileTaskComplete(fileTask);
+            }
+            return;
+        }
+        failFileTask(fileTask,e);
+    }
+
+    /**
+     * 任务失败，不再分配连接，已写入的部分保留在下载日志中，重新下载时续传
+     */
+    private void failFileTask(FileTask fileTask,Exception e){
+        if(!fileTaskMap.remove(fileTask.url,fileTask)){
+            return;
+        }
+        mDispatcher.remove(fileTask);
+        for (String mirror : fileTask.mirrors) {
+            HttpUtils.getInstance().invalidateProbe(mirror);
+        }
+        for (SegmentCache.Segment segment : fileTask.takePendingSegments()) {
+            segment.release();
+        }
+        final DownloadJournal journal = fileTask.getJournal();
+        if(journal != null){
+            try {
+                journal.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+        synchronized (sDownloadManagerGlobal) {
+            sDownloadManagerGlobal.onFailure(fileTask.url,e);
+        }
+    }
+
+    /**
+     * @return 任务是否还在下载中，失败或完成后返回false
+     */
+    private boolean isAlive(FileTask fileTask){
+        return fileTaskMap.get(fileTask.url) == fileTask;
+    }
+
+    /**
+     * 校验文件摘要，没有提供md5时不校验
+     */
+    private boolean judgeMD5(FileTask fileTask,File file){
+        if(fileTask.md5 == null || "".equals(fileTask.md5.trim())){
+            return true;
+        }
+        StreamingDigest digest = fileTask.getDigest();
+        if(digest == null){
+            digest = StreamingDigest.create(fileTask.md5,file);
+        }
+        if(digest == null){
+            return false;
+        }
+        try {
+            return digest.verify(fileTask.length > 0 ? fileTask.length : file.length(),fileTask.md5);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
@@ -245,88 +694,407 @@ public final class DownloadManagerGlobal implements CPModel,IDownloadManager{
      */
     private final class ProducerDownloadImpl extends AbstractProducer implements Producer,Runnable{
 
+        final FileTask fileTask;
         final FileTmp fileTmp;
 
-        public ProducerDownloadImpl(FileTmp fileTmp) {
-            if(fileTmp == null){
+        public ProducerDownloadImpl(FileTask fileTask,FileTmp fileTmp) {
+            if(fileTask == null || fileTmp == null){
                 throw new NullPointerException("DownloadExecutor ProducerDownloadImpl is null");
             }
+            this.fileTask = fileTask;
             this.fileTmp = fileTmp;
         }
 
         @Override
         public void produce() throws InterruptedException {
-           final DownloadExecutor executor = new DownloadExecutor.Builder()
+           final long startTime = System.currentTimeMillis();
+           if(fileTmp.isRange && fileTmp.getEndPath() <= fileTmp.startPath){
+               //请求发出前已被暂停，整个区间已还给SegmentScheduler
+               try {
+                   onFileTmpComplete(fileTask,fileTmp,0,0);
+               }finally {
+                   mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+               }
+               return;
+           }
+           final SegmentCache.Segment segment = acquireCachedSegment();
+           if(segment != null){
+               try {
+                   if(isAlive(fileTask)){
+                       writeCachedFileTmp(segment);
+                   }
+               }finally {
+                   segment.release();
+                   mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+               }
+               return;
+           }
+           //在当前的网络线程(io线程池或虚拟线程)中同步请求，读取socket和写入分段都不经过okhttp的Dispatcher线程，
+           //网络阶段的线程数、排队和统计都由网络线程池控制
+           new DownloadExecutor.Builder()
                     .setUrl(fileTmp.downloadUrl)
                     .setRunId(fileTmp.runId)
+                    .setRange(fileTmp.isRange ? fileTmp.startPath : -1,fileTmp.isRange ? fileTmp.getEndPath() : -1)
+                    .setBlocking(true)
                     .setDownloadFileCallback(new DownloadExecutor.DownloadFileCallback() {
                         @Override
                         public void onFailure(IOException e) {
-                            synchronized (sDownloadManagerGlobal) {
-                                sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
+                            try {
+                                onFileTmpFailure(fileTask,fileTmp,fileTmp.startPath,e);
+                            }finally {
+                                mDispatcher.onFileTmpFinished(fileTask,fileTmp);
                             }
                         }
 
                         @Override
                         public void onResponse(String url, int runId, Response response) {
-                            File saveFile = new File(fileTmp.savePath);
-                            if(!saveFile.exists()){
-                                saveFile.mkdirs();
+                            if(!HttpUtils.checkEntity(response,fileTask.length,fileTask.getETag())){
+                                onInconsistentResponse(response);
+                                return;
                             }
-                            File file = new File(fileTmp.savePath,fileTmp.fileName);
-                            if(!file.exists()){
-                                try {
-                                    file.createNewFile();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                    synchronized (sDownloadManagerGlobal) {
-                                        sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
-                                    }
+                            if(writeMode == WRITE_MODE_STREAM && isAlive(fileTask)){
+                                //读取和写入都在之后异步进行，结束时再关闭响应并释放连接
+                                streamFileTmp(response,startTime);
+                                return;
+                            }
+                            try {
+                                if(isAlive(fileTask)){
+                                    writeFileTmp(response,startTime);
                                 }
+                            }finally {
+                                response.close();
+                                mDispatcher.onFileTmpFinished(fileTask,fileTmp);
                             }
-                            FileOutputStream fos = null;
-                            InputStream is=null;
-                            byte[] buf=new byte[2048];
-                            int len=0;
-                            try{
-                                is=response.body().byteStream();
-                                final long total=response.body().contentLength();
-                                fos=new FileOutputStream(file);
-                                long sum=0;
-                                while((len = is.read(buf))!=-1){
-                                    fos.write(buf,0,len);
-                                    sum+=len;
-                                    int progress=(int)(sum*1.0f/total*100);
-                                    //下载中
+                        }
+                    }).run();
+        }
 
-                                }
-                                fos.flush();
-                                //下载完成
-                                fileTmpQueue.put(fileTmp);
-                                synchronized (sDownloadManagerGlobal) {
-                                    sDownloadManagerGlobal.onResponse(fileTmp.downloadUrl);
-                                }
-                            }catch (Exception e){
-                                synchronized (sDownloadManagerGlobal) {
-                                    sDownloadManagerGlobal.onFailure(fileTmp.downloadUrl,e);
-                                }
-                            }finally{
-                                try{
-                                    if(is!=null)
-                                        is.close();
-                                }catch (IOException e){
+        /**
+         * 镜像返回的长度或ETag与任务不一致，停用该镜像，分段换其他镜像下载
+         */
+        private void onInconsistentResponse(Response response){
+            response.close();
+            final SegmentScheduler scheduler = fileTask.getScheduler();
+            if(scheduler != null){
+                scheduler.disableMirror(fileTmp.downloadUrl);
+            }
+            try {
+                onFileTmpFailure(fileTask,fileTmp,fileTmp.startPath,
+                        new IOException("The length or ETag of " + fileTmp.downloadUrl + " does not match " + fileTask.url));
+            }finally {
+                mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+            }
+        }
 
-                                }
+        /**
+         * @return 按该镜像的单连接实测速度选择的缓冲区大小，还没有测过速度时按分段长度选择
+         */
+        private int bufferSize(){
+            final SegmentScheduler scheduler = fileTask.getScheduler();
+            final long speed = scheduler != null ? scheduler.measuredSpeed(fileTmp.downloadUrl) : 0;
+            return BufferPool.sizeFor(fileTmp.getEndPath() - fileTmp.startPath,speed);
+        }
+
+        /**
+         * @return 分段的结束位置，不支持Range时为文件长度
+         */
+        private long endPath(){
+            return fileTmp.isRange ? fileTmp.getEndPath() : fileTask.length;
+        }
+
+        /**
+         * @return 缓存中与该分段的url、ETag和区间都相同的内容，没有时返回null
+         */
+        private SegmentCache.Segment acquireCachedSegment(){
+            final SegmentCache cache = segmentCache;
+            final String etag = fileTask.getETag();
+            if(cache == null || !SegmentCache.cacheable(etag,endPath() - fileTmp.startPath)){
+                return null;
+            }
+            //各镜像的内容一致，按主地址缓存
+            return cache.acquire(fileTmp.tagUrl,etag,fileTmp.startPath,endPath());
+        }
+
+        /**
+         * 下载的内容同时复制一份，文件校验通过后放入缓存
+         */
+        private SegmentCache.Builder newCacheBuilder(){
+            final SegmentCache cache = segmentCache;
+            final String etag = fileTask.getETag();
+            final long length = endPath() - fileTmp.startPath;
+            if(cache == null || !SegmentCache.cacheable(etag,length)
+                    || !fileTask.reservePendingSegment(length,cache.maxSize())){
+                return null;
+            }
+            return cache.newBuilder(fileTmp.tagUrl,etag,fileTmp.startPath,endPath());
+        }
+
+        /**
+         * 从缓存的直接内存块写入目标文件，不经过网络
+         */
+        private void writeCachedFileTmp(SegmentCache.Segment segment){
+            File file = new File(fileTmp.savePath,fileTmp.fileName);
+            final DownloadJournal journal = fileTask.getJournal();
+            final SegmentWriteListener writeListener = new SegmentWriteListener(fileTask,fileTmp,null);
+            RandomAccessFile target = null;
+            try{
+                target = new RandomAccessFile(file,"rw");
+                final FileChannel channel = target.getChannel();
+                long position = fileTmp.startPath;
+                for (ByteBuffer buffer : segment.buffers()) {
+                    final int claimed = fileTmp.claim(position,buffer.remaining());
+                    if(claimed <= 0){
+                        break;
+                    }
+                    buffer.limit(buffer.position() + claimed);
+                    final long writePosition = position;
+                    final ByteBuffer data = buffer.duplicate();
+                    while (buffer.hasRemaining()){
+                        position += channel.write(buffer,position);
+                    }
+                    writeListener.onWrite(writePosition,data);
+                }
+                writeListener.finish();
+                onFileTmpComplete(fileTask,fileTmp,position - fileTmp.startPath,-1);
+            }catch (Exception e){
+                if(journal != null){
+                    try {
+                        writeListener.finish();
+                        journal.sync();
+                    } catch (IOException ioe){
+                        ioe.printStackTrace();
+                    }
+                }
+                onFileTmpFailure(fileTask,fileTmp,writeListener.position(),e);
+            }finally{
+                try {
+                    if(target!=null){
+                        target.close();
+                    }
+                }catch (IOException e){
+
+                }
+            }
+        }
+
+        /**
+         * @param startTime 发起请求的时间，用于计算该连接的速度
+         */
+        private void writeFileTmp(Response response,long startTime){
+            File file = new File(fileTmp.savePath,fileTmp.fileName);
+            final SegmentWriteListener writeListener = new SegmentWriteListener(fileTask,fileTmp,newCacheBuilder());
+            SegmentWriter writer = null;
+            try{
+                writer = createSegmentWriter(file,fileTmp,bufferSize());
+                writer.setWriteListener(writeListener);
+                final long sum = writer.write(response.body().source());
+                finishFileTmp(writeListener,sum,startTime);
+            }catch (Exception e){
+                failFileTmp(writeListener,e);
+            }finally{
+                try {
+                    if(writer!=null){
+                        writer.close();
+                    }
+                }catch (IOException e){
+
+                }
+            }
+        }
+
+        /**
+         * 由网络线程池按需读取响应体，磁盘线程池写入
+         * @param startTime 发起请求的时间，用于计算该连接的速度
+         */
+        private void streamFileTmp(final Response response,final long startTime){
+            final File file = new File(fileTmp.savePath,fileTmp.fileName);
+            final SegmentWriteListener writeListener = new SegmentWriteListener(fileTask,fileTmp,newCacheBuilder());
+            final ChannelSegmentSubscriber subscriber;
+            try {
+                subscriber = new ChannelSegmentSubscriber(file,fileTmp.startPath,ThreadManager.getDiskPool(),writeListener,
+                        new ChannelSegmentSubscriber.Callback() {
+                            @Override
+                            public void onComplete(long written) {
                                 try {
-                                    if(fos!=null){
-                                        fos.close();
-                                    }
-                                }catch (IOException e){
+                                    finishFileTmp(writeListener,written,startTime);
+                                } catch (Exception e) {
+                                    failFileTmp(writeListener,e);
+                                } finally {
+                                    response.close();
+                                    mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+                                }
+                            }
 
+                            @Override
+                            public void onError(Exception e) {
+                                try {
+                                    failFileTmp(writeListener,e);
+                                } finally {
+                                    response.close();
+                                    mDispatcher.onFileTmpFinished(fileTask,fileTmp);
                                 }
                             }
-                        }
-                    }).run();
+                        });
+            } catch (IOException e) {
+                try {
+                    failFileTmp(writeListener,e);
+                } finally {
+                    response.close();
+                    mDispatcher.onFileTmpFinished(fileTask,fileTmp);
+                }
+                return;
+            }
+            new SegmentPublisher(response.body().source(),fileTmp,ThreadManager.getIoPool(),bufferSize()).subscribe(subscriber);
+        }
+
+        /**
+         * 分段写完，检查长度后记录日志、生成缓存并交给SegmentScheduler
+         * @param sum 写入的字节数
+         */
+        private void finishFileTmp(SegmentWriteListener writeListener,long sum,long startTime) throws IOException {
+            if(fileTmp.isRange && sum != fileTmp.getEndPath() - fileTmp.startPath){
+                throw new IOException("Incomplete range " + fileTmp.startPath + "-" + fileTmp.getEndPath() + ", read " + sum);
+            }
+            //下载完成
+            synchronized (sDownloadManagerGlobal) {
+                sDownloadManagerGlobal.onResponse(fileTmp.tagUrl);
+            }
+            writeListener.finish();
+            writeListener.buildCache(endPath());
+            onFileTmpComplete(fileTask,fileTmp,sum,System.currentTimeMillis() - startTime);
+        }
+
+        private void failFileTmp(SegmentWriteListener writeListener,Exception e){
+            writeListener.abandonCache();
+            //记录已写入的部分，下次只下载剩下的区间
+            final DownloadJournal journal = fileTask.getJournal();
+            if(journal != null){
+                try {
+                    writeListener.finish();
+                    journal.sync();
+                } catch (IOException ioe){
+                    ioe.printStackTrace();
+                }
+            }
+            onFileTmpFailure(fileTask,fileTmp,writeListener.position(),e);
+        }
+    }
+
+    /**
+     * 分段写入回调：写入的数据交给StreamingDigest计算摘要、交给ChunkVerifier逐块校验，
+     * 每写入CHECKPOINT_SIZE字节向下载日志记录一次已完成的区间
+     *
+     * <p>校验失败的块不记入日志，从已下载长度中扣除后放回SegmentScheduler重新下载，
+     * 不支持Range时无法只下载该块，整个分段失败。
+     *
+     * <p>分段可以缓存时，写入的数据同时复制到SegmentCache.Builder中。
+     */
+    private static final class SegmentWriteListener implements SegmentWriter.WriteListener{
+        private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+        private final FileTask fileTask;
+        private final boolean isRange;
+        private final DownloadJournal journal;
+        private final StreamingDigest digest;
+        private final ChunkVerifier verifier;
+        private final SegmentCache.Builder cacheBuilder;
+        private long checkpoint;
+        private long position;
+
+        /**
+         * @param cacheBuilder 不缓存该分段时为null
+         */
+        SegmentWriteListener(FileTask fileTask, FileTmp fileTmp, SegmentCache.Builder cacheBuilder) {
+            this.fileTask = fileTask;
+            this.isRange = fileTmp.isRange;
+            this.journal = fileTask.getJournal();
+            this.digest = fileTask.getDigest();
+            this.verifier = fileTask.getVerifier();
+            this.cacheBuilder = cacheBuilder;
+            this.checkpoint = fileTmp.startPath;
+            this.position = fileTmp.startPath;
+        }
+
+        @Override
+        public void onWrite(long position, ByteBuffer data) throws IOException {
+            this.position = position + data.remaining();
+            if(digest != null){
+                digest.update(position,data);
+            }
+            if(verifier != null){
+                for (long[] failed : verifier.update(position,data)) {
+                    onChunkFailure(failed[0],failed[1]);
+                }
+            }
+            if(cacheBuilder != null){
+                cacheBuilder.append(position,data);
+            }
+            if(journal != null && this.position - checkpoint >= CHECKPOINT_SIZE){
+                journal.append(checkpoint,this.position);
+                checkpoint = this.position;
+            }
+        }
+
+        /**
+         * 块 [start,end) 校验失败，重新下载
+         */
+        private void onChunkFailure(long start,long end) throws IOException {
+            abandonCache();
+            if(!isRange){
+                throw new IOException("Chunk " + start + "-" + end + " failed verification");
+            }
+            //坏块之前的部分照常记录，检查点跳过坏块
+            if(journal != null && checkpoint < start){
+                journal.append(checkpoint,start);
+            }
+            checkpoint = Math.max(checkpoint,end);
+            fileTask.addCountLength(start - end);
+            if(digest != null){
+                digest.invalidate(start,end);
+            }
+            if(journal != null){
+                journal.invalidate(start,end);
+            }
+            final SegmentScheduler scheduler = fileTask.getScheduler();
+            if(scheduler != null){
+                scheduler.requeue(start,end);
+            }
+        }
+
+        /**
+         * 分段完整写入后生成缓存的分段，等文件校验通过后放入缓存
+         * @param end 分段最终的结束位置
+         */
+        void buildCache(long end) {
+            if(cacheBuilder != null){
+                final SegmentCache.Segment segment = cacheBuilder.build(end);
+                if(segment != null){
+                    fileTask.addPendingSegment(segment);
+                }
+            }
+        }
+
+        /**
+         * @return 最后一次写入的结束位置
+         */
+        long position() {
+            return position;
+        }
+
+        void abandonCache() {
+            if(cacheBuilder != null){
+                cacheBuilder.abandon();
+            }
+        }
+
+        /**
+         * 记录最后一个检查点之后写入的部分
+         */
+        void finish() throws IOException {
+            if(journal != null && position > checkpoint){
+                journal.append(checkpoint,position);
+                checkpoint = position;
+            }
         }
     }
 
@@ -1,11 +1,30 @@
 package com.rong.download;
 
+import java.util.List;
+
 public final class DownloadManagerImpl implements IDownloadManager {
     @Override
     public void downloadFile(String url, String md5, long length, String savePath, String fileName) {
 
     }
 
+    @Override
+    public void downloadFile(String url, String md5, long length, String savePath, String fileName, int priority) {
+
+    }
+
+    @Override
+    public void downloadFile(String url, String md5, long length, String savePath, String fileName, int priority,
+                             ChunkManifest manifest) {
+
+    }
+
+    @Override
+    public void downloadFile(List<String> urls, String md5, long length, String savePath, String fileName, int priority,
+                             ChunkManifest manifest) {
+
+    }
+
     @Override
     public void setMaxCacheFile(long maxSize) {
 
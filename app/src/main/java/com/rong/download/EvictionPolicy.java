@@ -0,0 +1,62 @@
+package com.rong.download;
+
+import java.util.List;
+
+/**
+ * {@link LruCache} 的淘汰策略，决定缓存超出容量时淘汰哪一项
+ *
+ * <p>所有方法都在 LruCache 的 evictionLock 中调用，实现不需要自己加锁。
+ * 每个 LruCache 使用自己的策略实例。
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * 缓存的容量变化，构造 LruCache 和调用 {@link LruCache#resize} 时调用
+     */
+    void setMaximum(int maxSize);
+
+    /**
+     * 新加入一项
+     * @param weight {@link LruCache#sizeOf} 的结果
+     * @return 该项在策略中的节点，之后的回调都传入这个节点
+     */
+    Node<K> onInsert(K key, int weight);
+
+    /**
+     * 命中一次，读缓冲回放时调用，可能有丢失
+     */
+    void onAccess(Node<K> node);
+
+    /**
+     * 节点被删除、替换或淘汰
+     */
+    void onRemove(Node<K> node);
+
+    /**
+     * 缓存超出容量时选出下一个要淘汰的节点，节点由 LruCache 随后通过 {@link #onRemove} 删除。
+     * 返回刚加入的节点表示不接纳它
+     * @return 策略中没有节点时返回null
+     */
+    Node<K> victim();
+
+    /**
+     * @return 所有的键，按最先淘汰到最后淘汰排列
+     */
+    List<K> keys();
+
+    /**
+     * 策略中的一项，链表指针由 {@link AccessQueue} 维护
+     */
+    class Node<K> {
+        final K key;
+        final int weight;
+        Node<K> before;//上一个节点
+        Node<K> after;//下一个节点
+        int queue;//所在的队列，由策略自己定义
+
+        public Node(K key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.rong.download;
+
+/**
+ * {@link ThreadManager.ThreadPoolProxy} 运行状态的不可变快照，由 {@link ThreadManager.ThreadPoolProxy#stats} 返回
+ *
+ * <p>队列长度和活跃线程数是取快照时的瞬时值，其余为累计值，两个快照相减得到一段时间内的增量。
+ */
+public final class ExecutorStats {
+    private final int queueSize;
+    private final int queueCapacity;
+    private final int activeCount;
+    private final int poolSize;
+    private final int largestPoolSize;
+    private final long completedCount;
+    private final long rejectedCount;
+    private final long callerRunsCount;
+    private final long totalQueueTime;
+    private final long totalRunTime;
+
+    public ExecutorStats(int queueSize, int queueCapacity, int activeCount, int poolSize, int largestPoolSize,
+                         long completedCount, long rejectedCount, long callerRunsCount,
+                         long totalQueueTime, long totalRunTime) {
+        this.queueSize = queueSize;
+        this.queueCapacity = queueCapacity;
+        this.activeCount = activeCount;
+        this.poolSize = poolSize;
+        this.largestPoolSize = largestPoolSize;
+        this.completedCount = completedCount;
+        this.rejectedCount = rejectedCount;
+        this.callerRunsCount = callerRunsCount;
+        this.totalQueueTime = totalQueueTime;
+        this.totalRunTime = totalRunTime;
+    }
+
+    /**
+     * @return 等待执行的任务数
+     */
+    public int queueSize() {
+        return queueSize;
+    }
+
+    public int queueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return 正在执行任务的线程数
+     */
+    public int activeCount() {
+        return activeCount;
+    }
+
+    public int poolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return 线程数曾经达到的最大值
+     */
+    public int largestPoolSize() {
+        return largestPoolSize;
+    }
+
+    /**
+     * @return 执行完成的任务数，包括在提交线程中执行的任务
+     */
+    public long completedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return 队列已满且没有在提交线程中执行、被拒绝的任务数
+     */
+    public long rejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return 队列已满时在提交线程中执行的任务数
+     */
+    public long callerRunsCount() {
+        return callerRunsCount;
+    }
+
+    /**
+     * @return 任务在队列中等待的平均时间，单位纳秒
+     */
+    public double averageQueueTime() {
+        return completedCount == 0 ? 0.0 : (double) totalQueueTime / completedCount;
+    }
+
+    /**
+     * @return 任务执行的平均时间，单位纳秒
+     */
+    public double averageRunTime() {
+        return completedCount == 0 ? 0.0 : (double) totalRunTime / completedCount;
+    }
+
+    /**
+     * @return this - other，瞬时值保留当前快照的值
+     */
+    public ExecutorStats minus(ExecutorStats other) {
+        return new ExecutorStats(queueSize, queueCapacity, activeCount, poolSize, largestPoolSize,
+                Math.max(0, completedCount - other.completedCount),
+                Math.max(0, rejectedCount - other.rejectedCount),
+                Math.max(0, callerRunsCount - other.callerRunsCount),
+                Math.max(0, totalQueueTime - other.totalQueueTime),
+                Math.max(0, totalRunTime - other.totalRunTime));
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorStats{" +
+                "queueSize=" + queueSize +
+                ", queueCapacity=" + queueCapacity +
+                ", activeCount=" + activeCount +
+                ", poolSize=" + poolSize +
+                ", largestPoolSize=" + largestPoolSize +
+                ", completedCount=" + completedCount +
+                ", rejectedCount=" + rejectedCount +
+                ", callerRunsCount=" + callerRunsCount +
+                ", averageQueueTime=" + averageQueueTime() +
+                ", averageRunTime=" + averageRunTime() +
+                '}';
+    }
+}
@@ -1,26 +1,172 @@
 package com.rong.download;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class FileTask {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
     final String url;
+    final List<String> mirrors;//所有下载地址，第一个为url
     final String md5;
-    final long length;
+    long length;
     final String savePath;
     final String fileName;
+    final String host;
+    final int priority;
+    final long sequence;//创建顺序，同优先级先创建的先下载
+    final ChunkManifest manifest;
     private long countLength = 0;
+    private volatile DownloadJournal journal;
+    private volatile SegmentScheduler scheduler;
+    private volatile StreamingDigest digest;
+    private volatile ChunkVerifier verifier;
+    private volatile String etag;
+    private volatile String lastModified;
+    private final List<SegmentCache.Segment> pendingSegments = new ArrayList<>();//文件校验通过后放入SegmentCache
+    private long pendingSegmentBytes;
 
     public FileTask(String url, String md5, long length, String savePath, String fileName) {
-        this.url = url;
+        this(url,md5,length,savePath,fileName,0);
+    }
+
+    /**
+     * @param priority 优先级，越大越先分配连接
+     */
+    public FileTask(String url, String md5, long length, String savePath, String fileName, int priority) {
+        this(url,md5,length,savePath,fileName,priority,null);
+    }
+
+    /**
+     * @param manifest 分块摘要清单，为null时只校验整个文件的md5
+     */
+    public FileTask(String url, String md5, long length, String savePath, String fileName, int priority,
+                    ChunkManifest manifest) {
+        this(Collections.singletonList(url),md5,length,savePath,fileName,priority,manifest);
+    }
+
+    /**
+     * @param urls 同一个文件的多个镜像地址，第一个为主地址，用来探测、记录日志和标识任务
+     */
+    public FileTask(List<String> urls, String md5, long length, String savePath, String fileName, int priority,
+                    ChunkManifest manifest) {
+        this.url = urls.get(0);
+        this.mirrors = Collections.unmodifiableList(new ArrayList<String>(urls));
         this.md5 = md5;
         this.length = length;
         this.savePath = savePath;
         this.fileName = fileName;
+        this.host = HttpUtils.hostOf(url);
+        this.priority = priority;
+        this.sequence = SEQUENCE.getAndIncrement();
+        this.manifest = manifest;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setJournal(DownloadJournal journal) {
+        this.journal = journal;
+    }
+
+    public DownloadJournal getJournal() {
+        return journal;
+    }
+
+    public void setScheduler(SegmentScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public SegmentScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setDigest(StreamingDigest digest) {
+        this.digest = digest;
     }
 
-    public void setCountLength(long countLength) {
+    public StreamingDigest getDigest() {
+        return digest;
+    }
+
+    public void setVerifier(ChunkVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    public ChunkVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @param etag 探测时服务器返回的强ETag，没有时为null
+     */
+    public void setETag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @param lastModified 服务器返回的Last-Modified，没有时为null
+     */
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 预留length字节等待缓存的分段
+     * @param maxBytes 单个任务等待缓存的最大字节数
+     * @return 超出maxBytes时返回false，不缓存该分段
+     */
+    public synchronized boolean reservePendingSegment(long length, long maxBytes) {
+        if (pendingSegmentBytes + length > maxBytes) {
+            return false;
+        }
+        pendingSegmentBytes += length;
+        return true;
+    }
+
+    public synchronized void addPendingSegment(SegmentCache.Segment segment) {
+        pendingSegments.add(segment);
+    }
+
+    /**
+     * 取出所有等待缓存的分段
+     */
+    public synchronized List<SegmentCache.Segment> takePendingSegments() {
+        final List<SegmentCache.Segment> segments = new ArrayList<>(pendingSegments);
+        pendingSegments.clear();
+        pendingSegmentBytes = 0;
+        return segments;
+    }
+
+    public synchronized void setCountLength(long countLength) {
         this.countLength = countLength;
     }
 
-    public long getCountLength() {
+    public synchronized long getCountLength() {
+        return countLength;
+    }
+
+    /**
+     * 分段下载完成后累加已下载长度
+     * @return 累加后的长度
+     */
+    public synchronized long addCountLength(long length) {
+        this.countLength += length;
         return countLength;
     }
 
@@ -32,6 +178,7 @@ public class FileTask {
                 ", length=" + length +
                 ", savePath='" + savePath + '\'' +
                 ", fileNam='" + fileName + '\'' +
+                ", priority=" + priority +
                 '}';
     }
 }
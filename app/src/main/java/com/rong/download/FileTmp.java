@@ -2,33 +2,104 @@ package com.rong.download;
 
 public class FileTmp {
      final long startPath ;
-     final long endPath ;
+     private long endPath ;
+     private long position ;//已预留写入的位置
+     private boolean paused ;
      final String fileName ;
      final String downloadUrl;
      final String tagUrl;
      final int runId;
     final String savePath;
+    final boolean isRange;
 
-    public FileTmp(long startPath, long endPath, String fileName, String downloadUrl,String tagUrl, int runId,String savePath) {
+    public FileTmp(long startPath, long endPath, String fileName, String downloadUrl,String tagUrl, int runId,String savePath,boolean isRange) {
         this.startPath = startPath;
         this.endPath = endPath;
+        this.position = startPath;
         this.fileName = fileName;
         this.downloadUrl = downloadUrl;
         this.tagUrl = tagUrl;
         this.runId = runId;
         this.savePath = savePath;
+        this.isRange = isRange;
+    }
+
+    public synchronized long getEndPath() {
+        return endPath;
+    }
+
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * 写入前预留 [position,position+length)，预留的区间不会被其他连接窃取
+     * @return 实际可以写入的长度，不超过endPath；为0时说明分段已写完
+     */
+    public synchronized int claim(long position, int length) {
+        if (!isRange) {
+            this.position = position + length;
+            return length;
+        }
+        final int claimed = (int) Math.max(0, Math.min(length, endPath - position));
+        this.position = position + claimed;
+        return claimed;
+    }
+
+    /**
+     * 空闲连接窃取该分段未预留部分的后一半，endPath缩短到中点
+     * @param minSize 窃取后两部分的最小长度
+     * @return 被窃取的区间 {mid,oldEnd}，剩余长度不足时返回null
+     */
+    public synchronized long[] split(long minSize) {
+        return split(minSize, 0.5);
+    }
+
+    /**
+     * 空闲连接窃取该分段未预留部分的后面一部分
+     * @param keepRatio 该分段保留的比例，两部分都不小于minSize
+     * @return 被窃取的区间 {endPath,oldEnd}，剩余长度不足时返回null
+     */
+    public synchronized long[] split(long minSize, double keepRatio) {
+        final long remaining = endPath - position;
+        if (!isRange || remaining < 2 * minSize) {
+            return null;
+        }
+        final long keep = Math.max(minSize, Math.min((long) (remaining * keepRatio), remaining - minSize));
+        final long oldEnd = endPath;
+        endPath = position + keep;
+        return new long[]{endPath, oldEnd};
+    }
+
+    /**
+     * 暂停分段，endPath缩短到已预留的位置，正在写入的连接写完预留部分后结束
+     * @return 未下载的区间 {position,oldEnd}，没有剩余时返回null
+     */
+    public synchronized long[] pause() {
+        if (!isRange || endPath <= position) {
+            return null;
+        }
+        final long oldEnd = endPath;
+        endPath = position;
+        paused = true;
+        return new long[]{position, oldEnd};
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
     }
 
     @Override
     public String toString() {
         return "FileTmp{" +
                 "startPath=" + startPath +
-                ", endPath=" + endPath +
+                ", endPath=" + getEndPath() +
                 ", fileName='" + fileName + '\'' +
                 ", downloadUrl='" + downloadUrl + '\'' +
                 ", tagUrl='" + tagUrl + '\'' +
                 ", runId=" + runId +
                 ", savePath='" + savePath + '\'' +
+                ", isRange=" + isRange +
                 '}';
     }
 }
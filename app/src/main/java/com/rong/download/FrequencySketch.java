@@ -0,0 +1,105 @@
+package com.rong.download;
+
+/**
+ * 用 count-min sketch 估计键最近的访问频率，每个计数器4位，最大15
+ *
+ * <p>每个键在4行中各有一个计数器，估计值取其中最小的一个。
+ * 累计增加的次数达到采样数时所有计数器减半，让频率随时间衰减，
+ * 过去很热但已经不再访问的键不会一直占着缓存。
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_ENTRIES = 1 << 20;
+    private static final int SAMPLE_FACTOR = 10;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * @param maximumEntries 预计缓存的最大条目数，决定计数器的数量
+     */
+    void ensureCapacity(int maximumEntries) {
+        final int entries = Math.max(16, Math.min(maximumEntries, MAX_ENTRIES));
+        int length = 1;
+        while (length < entries / 4) {
+            length <<= 1;
+        }
+        if (table != null && table.length >= length) {
+            return;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = entries * SAMPLE_FACTOR;
+        additions = 0;
+    }
+
+    /**
+     * @return 估计的访问频率，0到15
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, counterAt(hash, i));
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(hash, i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int counterAt(int hash, int row) {
+        final long h = rehash(hash, row);
+        final int index = (int) (h >>> 32) & tableMask;
+        final int offset = ((int) h & 15) << 2;
+        return (int) ((table[index] >>> offset) & 0xFL);
+    }
+
+    private boolean incrementAt(int hash, int row) {
+        final long h = rehash(hash, row);
+        final int index = (int) (h >>> 32) & tableMask;
+        final int offset = ((int) h & 15) << 2;
+        final long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = additions >>> 1;
+    }
+
+    private static long rehash(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return h ^ (h >>> 29);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
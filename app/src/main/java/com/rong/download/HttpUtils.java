@@ -1,12 +1,26 @@
 package com.rong.download;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 
@@ -15,12 +29,47 @@ import okhttp3.Response;
  */
 public class HttpUtils {
     private static final AtomicReference<HttpUtils> INSTANCE = new AtomicReference<>();
-    private final OkHttpClient mOkHttpClient;
+    private volatile OkHttpClient mOkHttpClient;
+    private volatile OkHttpClient mPriorKnowledgeClient;//h2c，与mOkHttpClient共用Dispatcher和连接池
+    private volatile Set<String> priorKnowledgeHosts = Collections.emptySet();
+    private final Dispatcher mDispatcher;
+    private final DnsCache dnsCache = new DnsCache();
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics(dnsCache);
+    private final LruCache<String,Boolean> warmedOrigins;//最近预热过连接的scheme://host:port，过期后才再次预热
+    private final LruCache<String,RangeInfo> probeCache;//无条件探测的结果，过期后重新探测
+
+    private final static int PROBE_CACHE_SIZE = 64;
+    private final static long PROBE_CACHE_SECONDS = 60;//支持Range的结果保留时间
+    private final static long PROBE_NO_RANGE_CACHE_SECONDS = 10;//不支持Range可能是代理等临时原因，保留时间短一些
+    private final static long WARM_UP_SECONDS = 60;//预热的空闲连接保留时间远长于此，期间不重复预热
 
     private final static int CONNECT_TIMEOUT = 30;
     private final static int WRITE_TIMEOUT = 60;
     private final static int READ_TIMEOUT = 60;
 
+    /**
+     * okhttp的Dispatcher只限制异步请求，默认每个host只允许5个。分段的连接数由DownloadDispatcher控制
+     * (默认全局 {@link DownloadDispatcher#DEFAULT_MAX_CONNECTIONS} 个)，这里的全局上限只是兜底，
+     * 故意设得比它高，不在okhttp中再排一次队，也不让共用这个client的其他异步请求被分段挤占
+     */
+    public final static int DEFAULT_MAX_REQUESTS = 64;
+    /**
+     * 每个host的上限与DownloadDispatcher一致
+     */
+    public final static int DEFAULT_MAX_REQUESTS_PER_HOST = DownloadDispatcher.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+    public final static long DEFAULT_KEEP_ALIVE_MINUTES = 5;
+
+    private final static String HEADER_RANGE = "Range";
+    private final static String HEADER_CONTENT_RANGE = "Content-Range";
+    private final static String HEADER_ETAG = "ETag";
+    private final static String HEADER_LAST_MODIFIED = "Last-Modified";
+    private final static String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private final static String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private final static int HTTP_OK = 200;
+    private final static int HTTP_PARTIAL = 206;
+    private final static int HTTP_NOT_MODIFIED = 304;
+
     /**
      * @return HttpUtil实例对象
      */
@@ -38,11 +87,117 @@ public class HttpUtils {
     }
 
     private HttpUtils(){
+        mDispatcher = new Dispatcher();
+        mDispatcher.setMaxRequests(DEFAULT_MAX_REQUESTS);
+        mDispatcher.setMaxRequestsPerHost(DEFAULT_MAX_REQUESTS_PER_HOST);
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .writeTimeout(WRITE_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
-        mOkHttpClient  = builder.build();
+                .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+                .dispatcher(mDispatcher)
+                .connectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS,DEFAULT_KEEP_ALIVE_MINUTES,TimeUnit.MINUTES))
+                //https时通过ALPN协商HTTP/2，同一host的分段请求在一个连接上多路复用
+                .protocols(Arrays.asList(Protocol.HTTP_2,Protocol.HTTP_1_1))
+                .dns(dnsCache)
+                .eventListenerFactory(connectionMetrics);
+        setClient(builder.build());
+        warmedOrigins = new LruCache<>(DnsCache.DEFAULT_MAX_HOSTS);
+        warmedOrigins.setExpireAfterWrite(WARM_UP_SECONDS,TimeUnit.SECONDS);
+        probeCache = new LruCache<String,RangeInfo>(PROBE_CACHE_SIZE){
+            @Override
+            protected long expireAfterWriteNanos(String key, RangeInfo value) {
+                return TimeUnit.SECONDS.toNanos(value.acceptRanges ? PROBE_CACHE_SECONDS : PROBE_NO_RANGE_CACHE_SECONDS);
+            }
+        };
+    }
+
+    /**
+     * 设置okhttp的Dispatcher的并发上限，只限制异步请求
+     * @param maxRequests 最大并发请求数
+     * @param maxRequestsPerHost 单个host的最大并发请求数
+     */
+    public void setDispatcherLimits(int maxRequests,int maxRequestsPerHost){
+        if(maxRequests <= 0 || maxRequestsPerHost <= 0){
+            throw new IllegalArgumentException("maxRequests <= 0");
+        }
+        mDispatcher.setMaxRequests(maxRequests);
+        mDispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * 替换连接池，原连接池中空闲的连接被关闭，正在使用的连接用完后关闭
+     * @param maxIdleConnections 最多保留的空闲连接数
+     * @param keepAliveDuration 空闲连接保留的时长
+     */
+    public synchronized void setConnectionPool(int maxIdleConnections,long keepAliveDuration,TimeUnit unit){
+        final OkHttpClient old = mOkHttpClient;
+        setClient(old.newBuilder()
+                .connectionPool(new ConnectionPool(maxIdleConnections,keepAliveDuration,unit))
+                .build());
+        old.connectionPool().evictAll();
+    }
+
+    /**
+     * 这些host不使用TLS，直接以HTTP/2（h2c prior knowledge）请求，用于确定支持h2c的内部镜像
+     * @param hosts 主机名，替换之前设置的主机名
+     */
+    public void setPriorKnowledgeHosts(Collection<String> hosts){
+        priorKnowledgeHosts = Collections.unmodifiableSet(new HashSet<>(hosts));
+    }
+
+    /**
+     * 提前解析url的host，可选地用HEAD请求建立连接并完成TLS握手，连接空闲后留在连接池中，
+     * 之后第一个分段直接复用。同步执行，由调用者放到网络线程中；失败时忽略，不影响之后的下载
+     * @param connect 是否预热连接
+     */
+    public void prefetch(String url,boolean connect){
+        final HttpUrl httpUrl = HttpUrl.parse(url);
+        if(httpUrl == null){
+            return;
+        }
+        try {
+            dnsCache.lookup(httpUrl.host());
+            final String origin = httpUrl.scheme() + "://" + httpUrl.host() + ":" + httpUrl.port();
+            //检查和标记一次完成，同一个origin同时只有一个预热请求
+            if(!connect || warmedOrigins.putIfAbsent(origin,Boolean.TRUE) != null){
+                return;
+            }
+            Request request = new Request.Builder()
+                    .head()
+                    .url(url)
+                    .build();
+            doSync(request).close();
+        } catch (IOException e) {
+            //预热失败时由下载请求重新建立连接
+        }
+    }
+
+    /**
+     * @return DNS缓存的命中情况
+     */
+    public CacheStats dnsStats(){
+        return dnsCache.stats();
+    }
+
+    /**
+     * @return 当前的连接复用情况
+     */
+    public ConnectionStats connectionStats(){
+        final ConnectionPool pool = mOkHttpClient.connectionPool();
+        return connectionMetrics.snapshot(pool.idleConnectionCount(),pool.connectionCount(),
+                mDispatcher.runningCallsCount(),mDispatcher.queuedCallsCount());
+    }
+
+    private synchronized void setClient(OkHttpClient client){
+        mOkHttpClient = client;
+        //newBuilder共用Dispatcher、连接池和事件监听
+        mPriorKnowledgeClient = client.newBuilder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+    }
+
+    private OkHttpClient clientFor(Request request){
+        return priorKnowledgeHosts.contains(request.url().host()) ? mPriorKnowledgeClient : mOkHttpClient;
     }
 
     /**
@@ -50,7 +205,7 @@ public class HttpUtils {
      */
     private void doAsync(Request request, Callback callback) throws IOException {
         //创建请求会话
-        Call call = mOkHttpClient.newCall(request);
+        Call call = clientFor(request).newCall(request);
         //同步执行会话请求
         call.enqueue(callback);
     }
@@ -61,7 +216,7 @@ public class HttpUtils {
     private Response doSync(Request request) throws IOException {
 
         //创建请求会话
-        Call call = mOkHttpClient.newCall(request);
+        Call call = clientFor(request).newCall(request);
         //同步执行会话请求
         return call.execute();
     }
@@ -87,4 +242,289 @@ public class HttpUtils {
                 .build();
         return doSync(request);
     }
+
+    /**
+     * 通过GET异步请求下载文件的指定区间
+     * @param start 起始位置(包含)
+     * @param end 结束位置(不包含)
+     */
+    public void downloadAsyncFile(String url,long start,long end,Callback callback) throws IOException {
+        Request request = new Request.Builder()
+                .get()
+                .url(url)
+                .header(HEADER_RANGE,rangeHeader(start,end))
+                .build();
+        doAsync(request,callback);
+    }
+
+    /**
+     * 通过GET同步请求下载文件的指定区间
+     * @param start 起始位置(包含)
+     * @param end 结束位置(不包含)
+     */
+    public Response downloadSyncFile(String url,long start,long end) throws IOException {
+        Request request = new Request.Builder()
+                .get()
+                .url(url)
+                .header(HEADER_RANGE,rangeHeader(start,end))
+                .build();
+        return doSync(request);
+    }
+
+    /**
+     * 探测服务器是否支持Range请求，只请求首字节 bytes=0-0
+     * 206 且Content-Range合法则支持分段下载，200 则只能单线程下载
+     * 结果缓存一段时间，同一个url短时间内再次下载时不重复探测
+     */
+    public RangeInfo probeRange(String url) throws IOException {
+        RangeInfo rangeInfo = probeCache.get(url);
+        if(rangeInfo != null){
+            return rangeInfo;
+        }
+        rangeInfo = probeRange(url,null,null);
+        probeCache.put(url,rangeInfo);
+        return rangeInfo;
+    }
+
+    /**
+     * 丢弃缓存的探测结果，下载失败时调用，避免继续使用过时的长度
+     */
+    public void invalidateProbe(String url){
+        probeCache.remove(url);
+    }
+
+    /**
+     * 带条件的探测，本地缓存的内容没有变化时服务器返回304，{@link RangeInfo#notModified} 为true
+     * @param etag 缓存的ETag，没有时为null
+     * @param lastModified 缓存的Last-Modified，没有时为null
+     */
+    public RangeInfo probeRange(String url,String etag,String lastModified) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .get()
+                .url(url)
+                .header(HEADER_RANGE,"bytes=0-0");
+        if(etag != null){
+            builder.header(HEADER_IF_NONE_MATCH,etag);
+        }
+        if(lastModified != null){
+            builder.header(HEADER_IF_MODIFIED_SINCE,lastModified);
+        }
+        Response response = doSync(builder.build());
+        try {
+            final int code = response.code();
+            if(code == HTTP_NOT_MODIFIED){
+                return new RangeInfo(false,-1,etag,lastModified,true);
+            }
+            final String lastModifiedHeader = response.header(HEADER_LAST_MODIFIED);
+            if(code == HTTP_PARTIAL){
+                final long[] contentRange = parseContentRange(response.header(HEADER_CONTENT_RANGE));
+                if(contentRange != null && contentRange[0] == 0 && contentRange[2] > 0){
+                    return new RangeInfo(true,contentRange[2],strongETag(response),lastModifiedHeader,false);
+                }
+                //Content-Range不合法，按不支持分段处理
+                return new RangeInfo(false,-1,null,null,false);
+            }
+            if(code == HTTP_OK){
+                return new RangeInfo(false,response.body() != null ? response.body().contentLength() : -1,
+                        strongETag(response),lastModifiedHeader,false);
+            }
+            throw new IOException("Unexpected code " + code + " for " + url);
+        }finally {
+            response.close();
+        }
+    }
+
+    /**
+     * 校验分段请求的响应是否为206且Content-Range与请求的区间一致
+     * @param start 起始位置(包含)
+     * @param end 结束位置(不包含)
+     */
+    public static boolean checkContentRange(Response response,long start,long end){
+        if(response.code() != HTTP_PARTIAL){
+            return false;
+        }
+        final long[] contentRange = parseContentRange(response.header(HEADER_CONTENT_RANGE));
+        return contentRange != null && contentRange[0] == start && contentRange[1] == end - 1;
+    }
+
+    /**
+     * 校验响应与任务是否为同一个文件：Content-Range中的总长度与length一致，双方都有强ETag时ETag一致，
+     * 用来发现内容不一致的镜像
+     * @param length 文件长度，未知时不校验
+     * @param etag 任务的强ETag，为null时不校验
+     */
+    public static boolean checkEntity(Response response,long length,String etag){
+        if(length > 0){
+            final long[] contentRange = parseContentRange(response.header(HEADER_CONTENT_RANGE));
+            if(contentRange != null && contentRange[2] >= 0 && contentRange[2] != length){
+                return false;
+            }
+        }
+        final String responseETag = strongETag(response);
+        return etag == null || responseETag == null || etag.equals(responseETag);
+    }
+
+    /**
+     * @return url的host，无法解析时返回url本身
+     */
+    public static String hostOf(String url){
+        final HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl != null ? httpUrl.host() : url;
+    }
+
+    /**
+     * 弱ETag只表示内容语义相同，不能用来标识字节区间，返回null
+     */
+    private static String strongETag(Response response){
+        final String etag = response.header(HEADER_ETAG);
+        if(etag == null || etag.startsWith("W/")){
+            return null;
+        }
+        return etag;
+    }
+
+    private static String rangeHeader(long start,long end){
+        return "bytes=" + start + "-" + (end - 1);
+    }
+
+    /**
+     * 解析 Content-Range: bytes first-last/total ，total未知时为-1
+     * @return {first,last,total}，格式不合法返回null
+     */
+    private static long[] parseContentRange(String contentRange){
+        if(contentRange == null || !contentRange.startsWith("bytes ")){
+            return null;
+        }
+        try {
+            final String value = contentRange.substring("bytes ".length()).trim();
+            final int dash = value.indexOf('-');
+            final int slash = value.indexOf('/');
+            if(dash <= 0 || slash <= dash){
+                return null;
+            }
+            final long first = Long.parseLong(value.substring(0,dash).trim());
+            final long last = Long.parseLong(value.substring(dash + 1,slash).trim());
+            final String totalValue = value.substring(slash + 1).trim();
+            final long total = "*".equals(totalValue) ? -1 : Long.parseLong(totalValue);
+            if(last < first){
+                return null;
+            }
+            return new long[]{first,last,total};
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    /**
+     * 按请求统计新建和复用的连接，每个请求一个监听器实例
+     */
+    private static final class ConnectionMetrics implements EventListener.Factory {
+        private final DnsCache dnsCache;
+        private final StripedCounter callCount = new StripedCounter();
+        private final StripedCounter newConnectionCount = new StripedCounter();
+        private final StripedCounter reusedConnectionCount = new StripedCounter();
+        private final StripedCounter failedConnectCount = new StripedCounter();
+        private final StripedCounter tlsHandshakeCount = new StripedCounter();
+        private final StripedCounter http2ConnectionCount = new StripedCounter();
+        private final StripedCounter totalConnectTime = new StripedCounter();
+        private final StripedCounter totalTlsTime = new StripedCounter();
+
+        ConnectionMetrics(DnsCache dnsCache) {
+            this.dnsCache = dnsCache;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new CallListener();
+        }
+
+        ConnectionStats snapshot(int idleConnections,int connections,int runningCalls,int queuedCalls){
+            return new ConnectionStats(callCount.sum(),newConnectionCount.sum(),reusedConnectionCount.sum(),
+                    failedConnectCount.sum(),tlsHandshakeCount.sum(),http2ConnectionCount.sum(),
+                    totalConnectTime.sum(),totalTlsTime.sum(),idleConnections,connections,runningCalls,queuedCalls);
+        }
+
+        private final class CallListener extends EventListener {
+            private long connectStart;
+            private long tlsStart;
+            private boolean connected;//本次请求新建了连接，获取连接前重置
+
+            @Override
+            public void callStart(Call call) {
+                callCount.increment();
+            }
+
+            @Override
+            public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                connectStart = System.nanoTime();
+            }
+
+            @Override
+            public void secureConnectStart(Call call) {
+                tlsStart = System.nanoTime();
+            }
+
+            @Override
+            public void secureConnectEnd(Call call, Handshake handshake) {
+                tlsHandshakeCount.increment();
+                totalTlsTime.add(System.nanoTime() - tlsStart);
+            }
+
+            @Override
+            public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+                connected = true;
+                newConnectionCount.increment();
+                totalConnectTime.add(System.nanoTime() - connectStart);
+                if(protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE){
+                    http2ConnectionCount.increment();
+                }
+            }
+
+            @Override
+            public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                      Protocol protocol, IOException ioe) {
+                failedConnectCount.increment();
+                //地址可能已经变化，下次重新解析
+                dnsCache.invalidate(call.request().url().host());
+            }
+
+            @Override
+            public void connectionAcquired(Call call, Connection connection) {
+                if(!connected){
+                    reusedConnectionCount.increment();
+                }
+                connected = false;
+            }
+        }
+    }
+
+    /**
+     * Range探测结果
+     */
+    public static final class RangeInfo{
+        final boolean acceptRanges;
+        final long contentLength;
+        final String etag;//强ETag，服务器没有返回时为null
+        final String lastModified;
+        final boolean notModified;//条件请求返回304，其他字段无效
+
+        RangeInfo(boolean acceptRanges, long contentLength, String etag, String lastModified, boolean notModified) {
+            this.acceptRanges = acceptRanges;
+            this.contentLength = contentLength;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.notModified = notModified;
+        }
+
+        @Override
+        public String toString() {
+            return "RangeInfo{" +
+                    "acceptRanges=" + acceptRanges +
+                    ", contentLength=" + contentLength +
+                    ", etag='" + etag + '\'' +
+                    ", lastModified='" + lastModified + '\'' +
+                    ", notModified=" + notModified +
+                    '}';
+        }
+    }
 }
@@ -1,6 +1,13 @@
 package com.rong.download;
 
+import java.util.List;
+
 public interface IDownloadManager {
+
+     int PRIORITY_LOW = -10;
+     int PRIORITY_NORMAL = 0;
+     int PRIORITY_HIGH = 10;
+
      /**
       * 下载文件设置
       * @param url 下载地址
@@ -12,6 +19,30 @@ public interface IDownloadManager {
      void downloadFile(final String url,final String md5,final long length,
                              final String savePath,final String fileName);
 
+     /**
+      * 按优先级下载文件，连接已满时高优先级任务会让低优先级任务的分段暂停让出连接
+      * @param priority 优先级，越大越先下载，如 {@link #PRIORITY_HIGH}
+      */
+     void downloadFile(final String url,final String md5,final long length,
+                             final String savePath,final String fileName,final int priority);
+
+     /**
+      * 提供分块摘要清单时，每块写完后立即校验，只重新下载校验失败的块
+      * @param manifest 分块摘要清单，为null时只校验整个文件的md5
+      */
+     void downloadFile(final String url,final String md5,final long length,
+                             final String savePath,final String fileName,final int priority,
+                             final ChunkManifest manifest);
+
+     /**
+      * 从多个镜像同时下载同一个文件，分段按各镜像的实测速度分配，
+      * 长度或ETag与第一个地址不一致的镜像不使用
+      * @param urls 镜像地址，第一个为主地址，用来标识任务
+      */
+     void downloadFile(final List<String> urls,final String md5,final long length,
+                             final String savePath,final String fileName,final int priority,
+                             final ChunkManifest manifest);
+
      void setMaxCacheFile(long maxSize);
 
      void startDownload();
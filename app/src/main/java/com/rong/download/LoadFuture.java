@@ -0,0 +1,135 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link AsyncLoadingCache} 返回的加载结果，完成后依次通知监听器
+ *
+ * <p>相当于只能由缓存完成的 CompletableFuture，CompletableFuture 在当前支持的Android版本上不可用。
+ * 不支持取消。
+ */
+public final class LoadFuture<V> implements Future<V> {
+
+    public interface Listener<V> {
+        /**
+         * @param value 加载的值，加载器返回null时为null
+         */
+        void onSuccess(V value);
+
+        void onFailure(Throwable t);
+    }
+
+    private List<Listener<V>> listeners = new ArrayList<>();
+    private boolean done;
+    private V value;
+    private Throwable failure;
+
+    /**
+     * @return 已经完成的结果
+     */
+    public static <V> LoadFuture<V> completed(V value) {
+        final LoadFuture<V> future = new LoadFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * 添加监听器，已经完成时在当前线程立即回调，否则在完成加载的线程回调
+     */
+    public void addListener(Listener<V> listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    void complete(V value) {
+        finish(value, null);
+    }
+
+    void fail(Throwable t) {
+        finish(null, t);
+    }
+
+    private void finish(V value, Throwable t) {
+        final List<Listener<V>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.value = value;
+            this.failure = t;
+            this.done = true;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Listener<V> listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(Listener<V> listener) {
+        if (failure != null) {
+            listener.onFailure(failure);
+        } else {
+            listener.onSuccess(value);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private V result() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
@@ -1,8 +1,12 @@
 package com.rong.download;
 
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A cache that holds strong references to a limited number of values. Each time
@@ -28,6 +32,26 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *       }
  *   }}</pre>
  *
+ * <p>Which entry is evicted is decided by an {@link EvictionPolicy}. The default
+ * {@link LruPolicy} evicts the least recently used entry; {@link TinyLfuPolicy}
+ * keeps frequently used entries from being flushed by one-off scans.
+ *
+ * <p>Lookups go through a {@link ConcurrentHashMap} and never block. A hit is
+ * recorded into one of several striped ring buffers instead of reordering the
+ * queue right away; the buffers are replayed against the queue under a
+ * try-lock once one of them fills up, and before every write. Recency is
+ * therefore sampled: when a buffer is contended the access is dropped, which
+ * only makes the eviction order slightly less exact.
+ *
+ * <p>Entries can also expire after a fixed time since they were written
+ * ({@link #setExpireAfterWrite}) or last read ({@link #setExpireAfterAccess});
+ * override {@link #expireAfterWriteNanos} to give each entry its own lifetime.
+ * There is no cleanup thread: {@link #get} treats an expired entry as a miss
+ * and removes it, and entries that are never read again are removed by a
+ * {@link TimerWheel} that advances whenever the buffers are replayed. Expired
+ * entries count as evictions and are passed to {@link #entryRemoved} with
+ * {@code evicted} set to true.
+ *
  * <p>This class is thread-safe. Perform multiple cache operations atomically by
  * synchronizing on the cache: <pre>   {@code
  *   synchronized (cache) {
@@ -45,28 +69,40 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Support Package</a> for earlier releases.
  */
 public class LruCache<K, V> {
-    private final HashMap<K, Entry<K, V>> map;//缓存容器，map的键其实就是entry的键
+    private final ConcurrentHashMap<K, Entry<K, V>> map;//缓存容器，map的键其实就是entry的键
 
     /**
      * Size of this cache in units. Not necessarily the number of elements.
      */
-    private int size;//缓存中的元素长度
-    private int maxSize;//缓存的长度
-
-    private int putCount;
-    private int createCount;
-    private int evictionCount;
-    private int hitCount;
-    private int missCount;
-    private Entry<K, V> head;//链表的头部
-    private Entry<K, V> tail;//链表的尾部
-
-    private final ReadWriteLock rwLock;
-
-
-    private static class Entry<K, V> {
-        Entry<K, V> before;//上一个节点
-        Entry<K, V> after;//下一个节点
+    private volatile int size;//缓存中的元素长度，只在evictionLock中修改
+    private volatile int maxSize;//缓存的长度
+
+    private final StripedCounter putCount = new StripedCounter();
+    private final StripedCounter createCount = new StripedCounter();
+    private final StripedCounter createFailureCount = new StripedCounter();
+    private final StripedCounter totalLoadTime = new StripedCounter();
+    private final StripedCounter evictionCount = new StripedCounter();
+    private final StripedCounter evictionWeight = new StripedCounter();
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+    private final boolean loading;//子类是否覆写了create，没有覆写时不统计加载
+    private final EvictionPolicy<K> policy;//淘汰策略，只在evictionLock中访问
+
+    private final ReentrantLock evictionLock;//保护淘汰策略和size
+    private final ReadBuffer<Entry<K, V>>[] readBuffers;//命中的节点先记录在这里，拿到锁后再回放给淘汰策略
+
+    private static final long NEVER = Long.MAX_VALUE;
+    private volatile long expireAfterWrite = -1;//纳秒，小于0表示写入后不过期
+    private volatile long expireAfterAccess = -1;//纳秒，小于0表示访问后不过期
+    private final TimerWheel timerWheel;//按到期时间清理不再被访问的条目，只在evictionLock中访问
+    private final ConcurrentLinkedQueue<Entry<K, V>> expiredEntries;//已过期删除、等待在锁外回调entryRemoved的条目
+
+
+    private static class Entry<K, V> extends TimerWheel.Node {
+        EvictionPolicy.Node<K> node;//在淘汰策略中的节点
+        boolean alive = true;//是否还在缓存中，读缓冲中可能还留有已删除的节点
+        volatile long writeExpiresAt = NEVER;//写入后的到期时间，System.nanoTime()
+        volatile long accessExpiresAt = NEVER;//最后一次访问后的到期时间，命中时无锁更新
         final V value;//保存的内容
         final K key;//键
 
@@ -79,6 +115,19 @@ public class LruCache<K, V> {
             return value;
         }
 
+        boolean mayExpire() {
+            return writeExpiresAt != NEVER || accessExpiresAt != NEVER;
+        }
+
+        long expiresAt() {
+            return Math.min(writeExpiresAt, accessExpiresAt);
+        }
+
+        boolean hasExpired(long now) {
+            final long expiresAt = expiresAt();
+            return expiresAt != NEVER && now - expiresAt >= 0;
+        }
+
         public K getKey() {
             return key;
         }
@@ -104,12 +153,28 @@ public class LruCache<K, V> {
      *                this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, new LruPolicy<K>());
+    }
+
+    /**
+     * @param policy 淘汰策略，每个缓存使用自己的实例
+     */
+    public LruCache(int maxSize, EvictionPolicy<K> policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (policy == null) {
+            throw new NullPointerException("policy == null");
+        }
         this.maxSize = maxSize;
-        this.map = new HashMap<>((int) Math.ceil(maxSize / 0.75) + 1, 0.75f);
-        this.rwLock = new ReentrantReadWriteLock();
+        this.policy = policy;
+        policy.setMaximum(maxSize);
+        this.map = new ConcurrentHashMap<>((int) Math.ceil(Math.min(maxSize, 1 << 16) / 0.75) + 1, 0.75f);
+        this.evictionLock = new ReentrantLock();
+        this.readBuffers = ReadBuffer.create(ReadBuffer.stripeCount());
+        this.timerWheel = new TimerWheel(System.nanoTime());
+        this.expiredEntries = new ConcurrentLinkedQueue<>();
+        this.loading = overridesCreate(getClass());
     }
 
     /**
@@ -121,87 +186,158 @@ public class LruCache<K, V> {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
-        rwLock.writeLock().lock();
+        evictionLock.lock();
         try {
             this.maxSize = maxSize;
+            policy.setMaximum(maxSize);
         }finally {
-            rwLock.writeLock().unlock();
+            evictionLock.unlock();
         }
         trimToSize(maxSize);
     }
 
-    // newNode 中新节点，放到双向链表的尾部
-    private void linkNodeLast(Entry<K, V> p) {
-        // 添加元素之前双向链表尾部节点
-        Entry<K, V> last = tail;
-        // tail 指向新添加的节点
-        tail = p;
-        //如果之前 tail 指向 null 那么集合为空新添加的节点 head = tail = p
-        if (last == null)
-            head = p;
-        else {
-            // 否则将新节点的 before 引用指向之前当前链表尾部
-            p.before = last;
-            // 当前链表尾部节点的 after 指向新节点
-            last.after = p;
+    /**
+     * 写入后经过duration过期，只影响之后写入的条目
+     * @param duration 小于0表示不过期
+     */
+    public final void setExpireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWrite = duration < 0 ? -1 : unit.toNanos(duration);
+    }
+
+    /**
+     * 最后一次读取或写入后经过duration过期，只影响之后写入的条目
+     * @param duration 小于0表示不过期
+     */
+    public final void setExpireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccess = duration < 0 ? -1 : unit.toNanos(duration);
+    }
+
+    /**
+     * 记录一次命中，读缓冲满时尝试回放，拿不到锁说明其他线程正在回放，直接返回
+     */
+    private void afterRead(Entry<K, V> e) {
+        final ReadBuffer<Entry<K, V>> buffer = readBuffers[ReadBuffer.stripeIndex(readBuffers.length)];
+        if (buffer.offer(e) && evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            notifyExpired();
         }
     }
 
-    // newNode 的实现
-    private Entry<K, V> newNode(K key, V value) {
-        Entry<K, V> p = new Entry<K, V>(key, value);
-        // 将 Entry 接在双向链表的尾部
-        linkNodeLast(p);
-        return p;
+    // 回放读缓冲并清理到期的条目，调用时持有 evictionLock
+    private void maintenance() {
+        drainReadBuffers();
+        expireEntries();
     }
 
+    // 推进时间轮，删除到期的条目；访问后延长了到期时间的条目按新的时间重新放入，调用时持有 evictionLock
+    @SuppressWarnings("unchecked")
+    private void expireEntries() {
+        final long now = System.nanoTime();
+        for (TimerWheel.Node node : timerWheel.advance(now)) {
+            final Entry<K, V> e = (Entry<K, V>) node;
+            if (!e.alive) {
+                continue;
+            }
+            if (e.hasExpired(now)) {
+                removeExpired(e);
+            } else {
+                timerWheel.schedule(e, e.expiresAt());
+            }
+        }
+    }
 
-    //  从双向链表中删除对应的节点 e 为已经删除的节点
-    private void afterNodeRemoval(Entry<K, V> e) {
-        Entry<K, V> p = e, b = p.before, a = p.after;
-        // 将 p 节点的前后指针引用置为 null 便于内存释放
-        p.before = p.after = null;
-        // p.before 为 null，表明 p 是头节点
-        if (b == null)
-            head = a;
-        else//否则将 p 的前驱节点连接到 p 的后驱节点
-            b.after = a;
-        // a 为 null，表明 p 是尾节点
-        if (a == null)
-            tail = b;
-        else //否则将 a 的前驱节点连接到 b
-            a.before = b;
-    }
-
-
-    //将被访问节点移动到链表最后
-    private void afterNodeAccess(Entry<K, V> e) { // move node to last
-        Entry<K, V> last;
-        if ((last = tail) != e) {
-            Entry<K, V> p = e, b = p.before, a = p.after;
-            //访问节点的后驱置为 null
-            p.after = null;
-            //如访问节点的前驱为 null 则说明 p = head
-            if (b == null)
-                head = a;
-            else
-                b.after = a;
-            //如果 p 不为尾节点 那么将 a 的前驱设置为 b
-            if (a != null)
-                a.before = b;
-            else
-                last = b;
-
-            if (last == null)
-                head = p;
-            else {
-                p.before = last;
-                last.after = p;
+    // 删除已过期的条目，entryRemoved 由 notifyExpired 在锁外回调，调用时持有 evictionLock
+    private void removeExpired(Entry<K, V> e) {
+        //Entry 按键比较，必须确认 map 中还是同一个条目
+        if (!e.alive || map.get(e.getKey()) != e) {
+            return;
+        }
+        map.remove(e.getKey());
+        afterNodeRemoval(e);
+        final int weight = safeSizeOf(e.getKey(), e.getValue());
+        size -= weight;
+        evictionCount.increment();
+        evictionWeight.add(weight);
+        expiredEntries.add(e);
+    }
+
+    // 在锁外回调已过期删除的条目
+    private void notifyExpired() {
+        Entry<K, V> e;
+        while ((e = expiredEntries.poll()) != null) {
+            entryRemoved(true, e.getKey(), e.getValue(), null);
+        }
+    }
+
+    /**
+     * 命中时检查是否已经过期，过期的条目当作未命中并删除；没有设置过期时间的条目不读取时间
+     * @return 是否已经过期
+     */
+    private boolean expireOnRead(Entry<K, V> e) {
+        if (!e.mayExpire()) {
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (!e.hasExpired(now)) {
+            final long accessNanos = expireAfterAccess;
+            if (e.accessExpiresAt != NEVER && accessNanos >= 0) {
+                //时间轮中的位置不更新，到时发现没有过期再重新放入
+                e.accessExpiresAt = now + accessNanos;
+            }
+            return false;
+        }
+        evictionLock.lock();
+        try {
+            maintenance();
+            removeExpired(e);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyExpired();
+        return true;
+    }
+
+    // 把读缓冲中记录的访问回放给淘汰策略，调用时持有 evictionLock
+    private void drainReadBuffers() {
+        for (ReadBuffer<Entry<K, V>> buffer : readBuffers) {
+            Entry<K, V> e;
+            while ((e = buffer.poll()) != null) {
+                if (e.alive) {
+                    policy.onAccess(e.node);
+                }
+            }
+        }
+    }
+
+    // 新节点交给淘汰策略，调用时持有 evictionLock
+    private Entry<K, V> newNode(K key, V value, int weight) {
+        Entry<K, V> p = new Entry<K, V>(key, value);
+        p.node = policy.onInsert(key, weight);
+        final long writeNanos = expireAfterWriteNanos(key, value);
+        final long accessNanos = expireAfterAccess;
+        if (writeNanos >= 0 || accessNanos >= 0) {
+            final long now = System.nanoTime();
+            if (writeNanos >= 0) {
+                p.writeExpiresAt = now + writeNanos;
+            }
+            if (accessNanos >= 0) {
+                p.accessExpiresAt = now + accessNanos;
             }
-            tail = p;// 将 p 接在双向链表的最后
+            timerWheel.schedule(p, p.expiresAt());
         }
+        return p;
     }
 
+    // 从淘汰策略和时间轮中删除对应的节点，调用时持有 evictionLock
+    private void afterNodeRemoval(Entry<K, V> e) {
+        e.alive = false;
+        policy.onRemove(e.node);
+        timerWheel.deschedule(e);
+    }
 
     /**
      * Returns the value for {@code key} if it exists in the cache or can be
@@ -214,28 +350,13 @@ public class LruCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        Entry<K, V> mapValue = null;
-        rwLock.readLock().lock();
-        try {
-            mapValue = map.get(key);
-            rwLock.readLock().unlock();
-            rwLock.writeLock().lock();
-            try {
-                if (mapValue != null) {
-                    afterNodeAccess(mapValue);
-                    hitCount++;
-                }
-                missCount++;
-            } finally {
-                rwLock.readLock().lock();
-                rwLock.writeLock().unlock();
-            }
-        } finally {
-            rwLock.readLock().unlock();
-            if (mapValue != null) {
-                return mapValue.getValue();
-            }
+        Entry<K, V> mapValue = map.get(key);
+        if (mapValue != null && !expireOnRead(mapValue)) {
+            hitCount.increment();
+            afterRead(mapValue);
+            return mapValue.getValue();
         }
+        missCount.increment();
 
         /*
          * Attempt to create a value. This may take a long time, and the map
@@ -244,27 +365,33 @@ public class LruCache<K, V> {
          * the map and release the created value.
          */
 
+        if (!loading) {
+            return null;
+        }
+        final long loadStart = System.nanoTime();
         V createdValue = create(key);
+        totalLoadTime.add(System.nanoTime() - loadStart);
         if (createdValue == null) {
+            createFailureCount.increment();
             return null;
         }
-        rwLock.writeLock().lock();
+        createCount.increment();
+        evictionLock.lock();
         try {
-            createCount++;
-            mapValue = newNode(key, createdValue);
-            Entry<K, V> previous = map.put(key, mapValue);
-            if (previous != null) {
-                // There was a conflict so undo that last put
-                afterNodeRemoval(mapValue);
-                map.put(key, previous);
-            } else {
-                size += safeSizeOf(key, createdValue);
+            maintenance();
+            mapValue = map.get(key);
+            if (mapValue == null) {
+                final int weight = safeSizeOf(key, createdValue);
+                map.put(key, newNode(key, createdValue, weight));
+                size += weight;
             }
         } finally {
-            rwLock.writeLock().unlock();
+            evictionLock.unlock();
         }
+        notifyExpired();
 
         if (mapValue != null) {
+            // There was a conflict so the created value is released
             entryRemoved(false, key, createdValue, mapValue.getValue());
             return mapValue.getValue();
         } else {
@@ -285,19 +412,22 @@ public class LruCache<K, V> {
         }
 
         Entry<K, V> previous;
-        rwLock.writeLock().lock();
+        evictionLock.lock();
         try {
-            putCount++;
-            size += safeSizeOf(key, value);
-            Entry<K, V> node = newNode(key, value);
+            maintenance();
+            putCount.increment();
+            final int weight = safeSizeOf(key, value);
+            size += weight;
+            Entry<K, V> node = newNode(key, value, weight);
             previous = map.put(key, node);
             if (previous != null) {
                 afterNodeRemoval(previous);
-                size -= safeSizeOf(key, value);
+                size -= safeSizeOf(key, previous.getValue());
             }
         } finally {
-            rwLock.writeLock().unlock();
+            evictionLock.unlock();
         }
+        notifyExpired();
 
         if (previous != null) {
             entryRemoved(false, key, previous.getValue(), value);
@@ -307,6 +437,43 @@ public class LruCache<K, V> {
         return previous != null ? previous.getValue() : null;
     }
 
+    /**
+     * 没有未过期的值时放入value，检查和放入在同一次加锁中完成
+     *
+     * @return 已有的未过期的值，放入了value时返回null
+     */
+    public final V putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        V present = null;
+        evictionLock.lock();
+        try {
+            maintenance();
+            final Entry<K, V> existing = map.get(key);
+            if (existing != null && !existing.hasExpired(System.nanoTime())) {
+                present = existing.getValue();
+            } else {
+                if (existing != null) {
+                    removeExpired(existing);
+                }
+                putCount.increment();
+                final int weight = safeSizeOf(key, value);
+                size += weight;
+                map.put(key, newNode(key, value, weight));
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyExpired();
+
+        if (present == null) {
+            trimToSize(maxSize);
+        }
+        return present;
+    }
+
 
 
     /**
@@ -317,44 +484,39 @@ public class LruCache<K, V> {
      *                to evict even 0-sized elements.
      */
     public void trimToSize(int maxSize) {
-        while (true) {
-            K key;
-            V value;
-            rwLock.readLock().lock();
-            if (size < 0 || (map.isEmpty() && size != 0)) {
-                rwLock.readLock().unlock();
-                throw new IllegalStateException(getClass().getName()
-                        + ".sizeOf() is reporting inconsistent results!");
-            }
-
-            if (size <= maxSize) {//检查是否超过最大缓存数
-                rwLock.readLock().unlock();
-                break;
-            }
-            Entry<K, V> toEvict = head;//取出头部
-            if (toEvict == null) {
-                rwLock.readLock().unlock();
-                break;
-            }
+        final List<Entry<K, V>> evicted = new ArrayList<>();
+        evictionLock.lock();
+        try {
+            maintenance();
+            while (true) {
+                if (size < 0 || (map.isEmpty() && size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
 
-            key = toEvict.getKey();
-            value = toEvict.getValue();
-            Entry<K, V> previous;
-            rwLock.readLock().unlock();//读取锁不可能升级成写入锁
-            rwLock.writeLock().lock();
-            try {
-                previous = map.remove(key);
-                if (previous != null) {
-                    afterNodeRemoval(previous);//删除节点
-                    size -= safeSizeOf(key, value);
-                    evictionCount++;
+                if (size <= maxSize) {//检查是否超过最大缓存数
+                    break;
                 }
-            } finally {
-                rwLock.readLock().lock();//写入锁可以降级为读取锁
-                rwLock.writeLock().unlock();
+                EvictionPolicy.Node<K> victim = policy.victim();//由淘汰策略选出
+                if (victim == null) {
+                    break;
+                }
+
+                Entry<K, V> toEvict = map.remove(victim.key);
+                afterNodeRemoval(toEvict);//删除节点
+                final int weight = safeSizeOf(toEvict.getKey(), toEvict.getValue());
+                size -= weight;
+                evictionCount.increment();
+                evictionWeight.add(weight);
+                evicted.add(toEvict);
             }
-            rwLock.readLock().unlock();
-            entryRemoved(true, key, value, null);
+        } finally {
+            evictionLock.unlock();
+        }
+        //在锁外回调，entryRemoved 可能很慢
+        notifyExpired();
+        for (Entry<K, V> e : evicted) {
+            entryRemoved(true, e.getKey(), e.getValue(), null);
         }
     }
 
@@ -369,16 +531,18 @@ public class LruCache<K, V> {
         }
 
         Entry<K, V> previous;
-        rwLock.writeLock().lock();
+        evictionLock.lock();
         try {
+            maintenance();
             previous = map.remove(key);
             if (previous != null) {
                 afterNodeRemoval(previous);
                 size -= safeSizeOf(key, previous.getValue());
             }
         } finally {
-            rwLock.writeLock().unlock();
+            evictionLock.unlock();
         }
+        notifyExpired();
 
         if (previous != null) {
             entryRemoved(false, key, previous.getValue(), null);
@@ -390,17 +554,20 @@ public class LruCache<K, V> {
 
     public final Iterator<Entry<K,V>> iterator(){
         final Set<Entry<K,V>> vSet = new LinkedHashSet<>();
-        rwLock.readLock().lock();
+        evictionLock.lock();
         try {
-            Entry<K,V> e = head;
-            while (e != tail.after){
-                vSet.add(e);
-                Entry<K,V> a = e.after;
-                e = a;
+            maintenance();
+            final long now = System.nanoTime();
+            for (K key : policy.keys()) {
+                final Entry<K, V> e = map.get(key);
+                if (!e.hasExpired(now)) {
+                    vSet.add(e);
+                }
             }
         }finally {
-            rwLock.readLock().unlock();
+            evictionLock.unlock();
         }
+        notifyExpired();
 
         return vSet.iterator();
     }
@@ -441,6 +608,18 @@ public class LruCache<K, V> {
         return null;
     }
 
+    private static boolean overridesCreate(Class<?> type) {
+        for (Class<?> c = type; c != LruCache.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("create", Object.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                //继续查找父类
+            }
+        }
+        return false;
+    }
+
     private int safeSizeOf(K key, V value) {
         int result = sizeOf(key, value);
         if (result < 0) {
@@ -460,6 +639,19 @@ public class LruCache<K, V> {
         return 1;
     }
 
+    /**
+     * Returns how long the entry for {@code key} and {@code value} stays in the
+     * cache after it is written, in nanoseconds, or a negative value if it does
+     * not expire after write. The default implementation returns the duration
+     * set by {@link #setExpireAfterWrite}.
+     *
+     * <p>The method is called while the cache is locked and must not access
+     * the cache.
+     */
+    protected long expireAfterWriteNanos(K key, V value) {
+        return expireAfterWrite;
+    }
+
     /**
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
@@ -473,13 +665,6 @@ public class LruCache<K, V> {
      * the sizes of the entries in this cache.
      */
     public  final int size() {
-        int size = -1;
-        rwLock.readLock().lock();
-        try {
-            size = this.size;
-        }finally {
-            rwLock.readLock().unlock();
-        }
         return size;
     }
 
@@ -489,13 +674,6 @@ public class LruCache<K, V> {
      * maximum sum of the sizes of the entries in this cache.
      */
     public  final int maxSize() {
-        int maxSize = -1;
-        rwLock.readLock().lock();
-        try {
-            maxSize = this.maxSize;
-        }finally {
-            rwLock.readLock().unlock();
-        }
         return maxSize;
     }
 
@@ -503,95 +681,82 @@ public class LruCache<K, V> {
      * Returns the number of times {@link #get} returned a value that was
      * already present in the cache.
      */
-    public final int hitCount() {
-        int hitCount = -1;
-        rwLock.readLock().lock();
-        try {
-            hitCount = this.hitCount;
-        }finally {
-            rwLock.readLock().unlock();
-        }
-        return hitCount;
+    public final long hitCount() {
+        return hitCount.sum();
     }
 
     /**
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public  final int missCount() {
-        int missCount = -1;
-        rwLock.readLock().lock();
-        try {
-            missCount = this.missCount;
-        }finally {
-            rwLock.readLock().unlock();
-        }
-        return missCount;
+    public final long missCount() {
+        return missCount.sum();
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
-    public final int createCount() {
-        int createCount = -1;
-        rwLock.readLock().lock();
-        try {
-            createCount = this.createCount;
-        }finally {
-            rwLock.readLock().unlock();
-        }
-        return createCount;
+    public final long createCount() {
+        return createCount.sum();
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public final int putCount() {
-        int putCount = -1;
-        rwLock.readLock().lock();
-        try {
-            putCount = this.putCount;
-        }finally {
-            rwLock.readLock().unlock();
-        }
-        return putCount;
+    public final long putCount() {
+        return putCount.sum();
     }
 
     /**
      * Returns the number of values that have been evicted.
      */
-    public final int evictionCount() {
-        int evictionCount = -1;
-        rwLock.readLock().lock();
-        try {
-            evictionCount = this.evictionCount;
-        }finally {
-            rwLock.readLock().unlock();
-        }
-        return evictionCount;
+    public final long evictionCount() {
+        return evictionCount.sum();
     }
 
     /**
-     * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * Returns a snapshot of the statistics of this cache. Counters are read
+     * without locking, so concurrent updates may be partially reflected.
      */
-    /** public synchronized final Map<K, Entry<K, V>> snapshot() {
-        return new HashMap<K, Entry<K, V>>(map);
-    }*/
+    public final CacheStats stats() {
+        return new CacheStats(hitCount.sum(), missCount.sum(), createCount.sum(), createFailureCount.sum(),
+                totalLoadTime.sum(), putCount.sum(), evictionCount.sum(), evictionWeight.sum());
+    }
 
-    @Override
-    public final String toString() {
-        String s = null;
-        rwLock.readLock().lock();
+    /**
+     * Returns a copy of the current contents of the cache, ordered from the
+     * entry that would be evicted first to the entry that would be evicted
+     * last. For {@link LruPolicy} this is least recently accessed to most
+     * recently accessed. Later changes to the cache are not reflected in the
+     * returned map.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<>();
+        evictionLock.lock();
         try {
-            int accesses = hitCount + missCount;
-            int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
-            s = String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
-                    maxSize, hitCount, missCount, hitPercent);
-        }finally {
-            rwLock.readLock().unlock();
+            maintenance();
+            final long now = System.nanoTime();
+            for (K key : policy.keys()) {
+                final Entry<K, V> e = map.get(key);
+                if (!e.hasExpired(now)) {
+                    snapshot.put(key, e.getValue());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
         }
-        return s;
+        notifyExpired();
+        return snapshot;
+    }
+
+    @Override
+    public final String toString() {
+        long hits = hitCount.sum();
+        long misses = missCount.sum();
+        long accesses = hits + misses;
+        long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, misses, hitPercent);
     }
 
     public final String toAllValueString(){
@@ -611,5 +776,76 @@ public class LruCache<K, V> {
         SB.append("]");
         return SB.toString();
     }
-}
 
+    /**
+     * 有界的环形缓冲，多个线程无锁写入，持有 evictionLock 的线程读取。
+     * 缓冲已满或写入时发生竞争时直接丢弃，丢失的只是一次访问记录。
+     */
+    private static final class ReadBuffer<E> {
+        private static final int BUFFER_SIZE = 16;
+        private static final int MASK = BUFFER_SIZE - 1;
+        private static final int MAX_STRIPES = 16;
+
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        static int stripeCount() {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+                stripes <<= 1;
+            }
+            return stripes;
+        }
+
+        static int stripeIndex(int stripes) {
+            final long id = Thread.currentThread().getId();
+            return (int) (id ^ (id >>> 16)) & (stripes - 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E> ReadBuffer<E>[] create(int stripes) {
+            final ReadBuffer<E>[] buffers = new ReadBuffer[stripes];
+            for (int i = 0; i < stripes; i++) {
+                buffers[i] = new ReadBuffer<>();
+            }
+            return buffers;
+        }
+
+        /**
+         * @return 缓冲是否已满，需要回放
+         */
+        boolean offer(E e) {
+            final long head = readCounter;
+            final long tail = writeCounter.get();
+            if (tail - head >= BUFFER_SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & MASK), e);
+                return tail + 1 - head >= BUFFER_SIZE;
+            }
+            return false;
+        }
+
+        /**
+         * 只能在持有 evictionLock 时调用
+         * @return 没有可读取的记录时返回null
+         */
+        E poll() {
+            final long head = readCounter;
+            if (head >= writeCounter.get()) {
+                return null;
+            }
+            final int index = (int) (head & MASK);
+            final E e = buffer.get(index);
+            if (e == null) {
+                //写入线程已占位但还没有写入，下次再读
+                return null;
+            }
+            buffer.lazySet(index, null);
+            readCounter = head + 1;
+            return e;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 最近最少使用，淘汰最久没有访问的一项，{@link LruCache} 的默认策略
+ */
+public final class LruPolicy<K> implements EvictionPolicy<K> {
+    private final AccessQueue<K> queue = new AccessQueue<>();
+
+    @Override
+    public void setMaximum(int maxSize) {
+    }
+
+    @Override
+    public Node<K> onInsert(K key, int weight) {
+        final Node<K> node = new Node<>(key, weight);
+        queue.linkLast(node);
+        return node;
+    }
+
+    @Override
+    public void onAccess(Node<K> node) {
+        queue.moveToBack(node);
+    }
+
+    @Override
+    public void onRemove(Node<K> node) {
+        queue.unlink(node);
+    }
+
+    @Override
+    public Node<K> victim() {
+        return queue.peekFirst();
+    }
+
+    @Override
+    public List<K> keys() {
+        final List<K> keys = new ArrayList<>();
+        queue.addKeysTo(keys);
+        return keys;
+    }
+}
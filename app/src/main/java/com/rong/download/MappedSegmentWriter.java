@@ -0,0 +1,102 @@
+package com.rong.download;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.BufferedSource;
+
+/**
+ * 通过内存映射写入目标文件，source直接读入MappedByteBuffer，省去用户态缓冲区的拷贝
+ *
+ * <p>分段按windowSize分窗口映射，避免大文件占满32位进程的地址空间。
+ * 映射区域没有公开的unmap方法，窗口写完后释放引用，由GC解除映射；
+ * forceOnUnmap为true时释放前先force()落盘，否则交给内核批量回写。
+ */
+public final class MappedSegmentWriter implements SegmentWriter {
+
+    public static final long DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+    private final RandomAccessFile target;
+    private final FileChannel channel;
+    private static final int CLAIM_SIZE = BufferPool.SIZE_LARGE;
+
+    private final FileTmp fileTmp;
+    private final long windowSize;
+    private final boolean forceOnUnmap;
+    private WriteListener mWriteListener;
+
+    /**
+     * @param fileTmp 写入的分段，写入过程中endPath可能被其他连接缩短
+     * @param windowSize 每次映射的最大长度
+     * @param forceOnUnmap 每个窗口写完后是否立即force()
+     */
+    public MappedSegmentWriter(File file, FileTmp fileTmp, long windowSize, boolean forceOnUnmap) throws FileNotFoundException {
+        if (!fileTmp.isRange || fileTmp.getEndPath() <= fileTmp.startPath) {
+            throw new IllegalArgumentException("MappedSegmentWriter endPath <= startPath");
+        }
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("MappedSegmentWriter windowSize <= 0");
+        }
+        this.target = new RandomAccessFile(file, "rw");
+        this.channel = target.getChannel();
+        this.fileTmp = fileTmp;
+        this.windowSize = windowSize;
+        this.forceOnUnmap = forceOnUnmap;
+    }
+
+    @Override
+    public long write(BufferedSource source) throws IOException {
+        long position = fileTmp.startPath;
+        boolean finished = false;
+        while (!finished && position < fileTmp.getEndPath()) {
+            final long size = Math.min(windowSize, fileTmp.getEndPath() - position);
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            try {
+                while (!finished && mapped.hasRemaining()) {
+                    final int claimed = fileTmp.claim(position + mapped.position(), Math.min(mapped.remaining(), CLAIM_SIZE));
+                    if (claimed <= 0) {
+                        finished = true;
+                        break;
+                    }
+                    final int begin = mapped.position();
+                    final int limit = begin + claimed;
+                    mapped.limit(limit);
+                    while (mapped.position() < limit) {
+                        if (source.read(mapped) == -1) {
+                            finished = true;
+                            break;
+                        }
+                    }
+                    if (mWriteListener != null) {
+                        final ByteBuffer data = mapped.duplicate();
+                        data.limit(mapped.position());
+                        data.position(begin);
+                        mWriteListener.onWrite(position + begin, data);
+                    }
+                    mapped.limit(mapped.capacity());
+                }
+                position += mapped.position();
+            } finally {
+                if (forceOnUnmap) {
+                    mapped.force();
+                }
+            }
+        }
+        return position - fileTmp.startPath;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+        this.mWriteListener = listener;
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+}
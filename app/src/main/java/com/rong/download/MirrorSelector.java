@@ -0,0 +1,170 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 多个镜像之间按实测速度分配分段
+ *
+ * <p>每个镜像记录平滑后的单连接速度和正在下载的分段数，新分段交给 (running+1)/speed 最小的镜像，
+ * 各镜像的连接数因此与速度成正比，慢镜像在快镜像连接数足够多之前拿不到新分段。
+ * 还没有测过速度的镜像先各分配一个分段。
+ *
+ * <p>连续失败MAX_FAILURES次或内容不一致的镜像不再使用。
+ * 不是线程安全的，由 {@link SegmentScheduler} 在自己的锁中调用。
+ */
+final class MirrorSelector {
+
+    private static final int MAX_FAILURES = 3;
+    private static final float SMOOTHING = 0.5f;//新速度样本的权重
+
+    private final List<Mirror> mirrors;
+
+    static final class Mirror {
+        final String url;
+        final String host;
+        private long speed;//平滑后的单连接速度 bytes/s，0表示还没有测过
+        private int running;
+        private int failures;//连续失败次数
+        private boolean disabled;
+
+        Mirror(String url) {
+            this.url = url;
+            this.host = HttpUtils.hostOf(url);
+        }
+
+        long speed() {
+            return speed;
+        }
+
+        @Override
+        public String toString() {
+            return "Mirror{" +
+                    "url='" + url + '\'' +
+                    ", speed=" + speed +
+                    ", running=" + running +
+                    ", failures=" + failures +
+                    ", disabled=" + disabled +
+                    '}';
+        }
+    }
+
+    /**
+     * @param urls 镜像地址，不能为空
+     */
+    MirrorSelector(List<String> urls) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("MirrorSelector urls is empty");
+        }
+        this.mirrors = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            if (find(url) == null) {
+                mirrors.add(new Mirror(url));
+            }
+        }
+    }
+
+    /**
+     * 选出下一个分段使用的镜像
+     * @param fullHosts 连接数已满的host，为null时不限制
+     * @return 没有可用的镜像时返回null
+     */
+    Mirror select(Set<String> fullHosts) {
+        final long fallbackSpeed = averageSpeed();
+        Mirror best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Mirror mirror : mirrors) {
+            if (mirror.disabled || (fullHosts != null && fullHosts.contains(mirror.host))) {
+                continue;
+            }
+            if (mirror.speed == 0 && mirror.running == 0) {
+                //先测一下速度
+                return mirror;
+            }
+            final long speed = mirror.speed > 0 ? mirror.speed : fallbackSpeed;
+            final double load = (mirror.running + 1) / (double) speed;
+            if (load < bestLoad) {
+                best = mirror;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    void onStart(Mirror mirror) {
+        mirror.running++;
+    }
+
+    /**
+     * 分段下载完成，更新镜像的速度
+     * @param speed 该分段的速度 bytes/s，小于0表示速度不准确
+     */
+    void onComplete(Mirror mirror, long speed) {
+        mirror.running--;
+        mirror.failures = 0;
+        if (speed < 0) {
+            return;
+        }
+        final long sample = Math.max(speed, 1);
+        mirror.speed = mirror.speed == 0 ? sample : (long) (mirror.speed * (1 - SMOOTHING) + sample * SMOOTHING);
+    }
+
+    /**
+     * 分段下载失败，连续失败MAX_FAILURES次后不再使用
+     */
+    void onFailure(Mirror mirror) {
+        mirror.running--;
+        if (++mirror.failures >= MAX_FAILURES) {
+            mirror.disabled = true;
+        }
+    }
+
+    /**
+     * 镜像的内容与任务不一致，立即停用
+     */
+    void disable(Mirror mirror) {
+        mirror.disabled = true;
+    }
+
+    Mirror find(String url) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.url.equals(url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return mirrors.size();
+    }
+
+    /**
+     * @return 还可以使用的镜像数
+     */
+    int available() {
+        int count = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.disabled) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 已测过速度的镜像的平均速度，都没有测过时为1，此时各镜像按分段数平均分配
+     */
+    private long averageSpeed() {
+        long sum = 0;
+        int count = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.disabled && mirror.speed > 0) {
+                sum += mirror.speed;
+                count++;
+            }
+        }
+        return count == 0 ? 1 : Math.max(sum / count, 1);
+    }
+}
@@ -0,0 +1,242 @@
+package com.rong.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分段内容缓存，按 (url, ETag, 区间) 缓存下载过的分段，再次下载同一分段时不需要网络请求
+ *
+ * <p>内容存放在 {@link SlabArena} 的直接内存块中，按占用的块大小通过 {@link #sizeOf} 计入容量，
+ * 淘汰或替换时由 {@link #entryRemoved} 把块还给 arena。读取时直接返回块的只读视图，不复制数据；
+ * 分段带引用计数，正在读取的分段被淘汰时等读取结束后才归还内存块。
+ *
+ * <p>下载中的分段先由 {@link Builder} 复制到内存块，整个文件校验通过后才调用 {@link #put(Segment)} 放入缓存，
+ * 校验失败时调用 {@link Segment#release} 丢弃，避免缓存错误的内容。
+ */
+public final class SegmentCache extends LruCache<SegmentCache.Key, SegmentCache.Segment> {
+
+    /**
+     * 超过该长度的分段不缓存
+     */
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private final SlabArena arena;
+
+    /**
+     * @param maxBytes 缓存占用的最大直接内存
+     */
+    public SegmentCache(int maxBytes) {
+        super(maxBytes, new TinyLfuPolicy<Key>());
+        this.arena = new SlabArena(maxBytes);
+    }
+
+    /**
+     * 取出分段并增加引用，用完后必须调用 {@link Segment#release}
+     * @return 没有缓存时返回null
+     */
+    public Segment acquire(String url, String etag, long start, long end) {
+        final Segment segment = get(new Key(url, etag, start, end));
+        return segment != null && segment.retain() ? segment : null;
+    }
+
+    /**
+     * @return 长度为length的分段是否可以缓存
+     */
+    public static boolean cacheable(String etag, long length) {
+        return etag != null && length > 0 && length <= MAX_SEGMENT_SIZE;
+    }
+
+    /**
+     * 放入由 {@link Builder#build} 生成的分段
+     */
+    public void put(Segment segment) {
+        put(segment.key, segment);
+    }
+
+    /**
+     * 开始缓存区间 [start,end) ，按顺序追加写入的数据，完整后调用 {@link Builder#build}
+     */
+    public Builder newBuilder(String url, String etag, long start, long end) {
+        return new Builder(new Key(url, etag, start, end));
+    }
+
+    @Override
+    protected int sizeOf(Key key, Segment value) {
+        return value.slabs.length * SlabArena.SLAB_SIZE;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Key key, Segment oldValue, Segment newValue) {
+        oldValue.release();
+    }
+
+    public static final class Key {
+        final String url;
+        final String etag;
+        final long start;
+        final long end;
+
+        Key(String url, String etag, long start, long end) {
+            this.url = url;
+            this.etag = etag;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return start == key.start && end == key.end && url.equals(key.url) && etag.equals(key.etag);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = url.hashCode();
+            result = 31 * result + etag.hashCode();
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return url + "[" + start + "," + end + ")";
+        }
+    }
+
+    /**
+     * 缓存的分段内容，引用计数为0时内存块还给arena
+     */
+    public static final class Segment {
+        private final Key key;
+        private final SlabArena arena;
+        private final ByteBuffer[] slabs;
+        private final long length;
+        private final AtomicInteger refCount = new AtomicInteger(1);//缓存本身持有一个引用
+
+        private Segment(Key key, SlabArena arena, ByteBuffer[] slabs, long length) {
+            this.key = key;
+            this.arena = arena;
+            this.slabs = slabs;
+            this.length = length;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        /**
+         * @return 按顺序排列的只读视图，共享分段的内存，只在释放引用前有效
+         */
+        public ByteBuffer[] buffers() {
+            final ByteBuffer[] buffers = new ByteBuffer[slabs.length];
+            long remaining = length;
+            for (int i = 0; i < slabs.length; i++) {
+                final ByteBuffer buffer = slabs[i].asReadOnlyBuffer();
+                buffer.clear();
+                buffer.limit((int) Math.min(remaining, SlabArena.SLAB_SIZE));
+                remaining -= buffer.limit();
+                buffers[i] = buffer;
+            }
+            return buffers;
+        }
+
+        boolean retain() {
+            for (; ; ) {
+                final int count = refCount.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() {
+            if (refCount.decrementAndGet() == 0) {
+                for (ByteBuffer slab : slabs) {
+                    arena.release(slab);
+                }
+            }
+        }
+    }
+
+    /**
+     * 边下载边把数据复制到内存块中，数据必须从区间起点开始连续追加
+     */
+    public final class Builder {
+        private final Key key;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private long position;
+        private boolean abandoned;
+
+        private Builder(Key key) {
+            this.key = key;
+            this.position = key.start;
+        }
+
+        /**
+         * 追加 [position,position+data.remaining()) ，不会修改data的position；不连续时放弃缓存
+         */
+        public void append(long position, ByteBuffer data) {
+            if (abandoned) {
+                return;
+            }
+            if (position != this.position || position + data.remaining() > key.end) {
+                abandon();
+                return;
+            }
+            final ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+                if (slab == null || !slab.hasRemaining()) {
+                    slab = arena.acquire();
+                    slabs.add(slab);
+                }
+                final int n = Math.min(src.remaining(), slab.remaining());
+                final ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                slab.put(part);
+                src.position(src.position() + n);
+            }
+            this.position += data.remaining();
+        }
+
+        /**
+         * 分段写完后生成缓存的分段，之后Builder不再可用
+         * @param end 分段最终的结束位置，分段被窃取后会比开始时小
+         * @return 数据不完整时返回null
+         */
+        public Segment build(long end) {
+            if (abandoned) {
+                return null;
+            }
+            if (position != end) {
+                abandon();
+                return null;
+            }
+            final Key built = end == key.end ? key : new Key(key.url, key.etag, key.start, end);
+            abandoned = true;
+            return new Segment(built, arena, slabs.toArray(new ByteBuffer[slabs.size()]), end - key.start);
+        }
+
+        /**
+         * 数据不完整或校验失败，归还已占用的内存块
+         */
+        public void abandon() {
+            if (abandoned) {
+                return;
+            }
+            abandoned = true;
+            for (ByteBuffer slab : slabs) {
+                arena.release(slab);
+            }
+            slabs.clear();
+        }
+    }
+}
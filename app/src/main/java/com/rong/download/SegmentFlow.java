@@ -0,0 +1,43 @@
+package com.rong.download;
+
+/**
+ * 带背压的发布/订阅接口，与 java.util.concurrent.Flow 的约定相同，Flow 在当前支持的Android版本上不可用
+ *
+ * <p>订阅者通过 {@link Subscription#request} 声明还能处理多少个元素，发布者不会发出超过需求的元素；
+ * 同一个订阅者的回调不会并发执行。
+ */
+public final class SegmentFlow {
+
+    private SegmentFlow() {
+        throw new IllegalArgumentException("SegmentFlow Initialization is not supported");
+    }
+
+    public interface Publisher<T> {
+        /**
+         * 每个发布者只能被订阅一次
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * 增加n个元素的需求
+         */
+        void request(long n);
+
+        /**
+         * 不再接收元素，已经发出的回调可能还会到达
+         */
+        void cancel();
+    }
+}
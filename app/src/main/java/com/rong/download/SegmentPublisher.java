@@ -0,0 +1,165 @@
+package com.rong.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.BufferedSource;
+
+/**
+ * 把分段的响应体按需读成ByteBuffer发布出去
+ *
+ * <p>只有订阅者请求时才从source读取，每个元素对应一次 {@link FileTmp#claim}，
+ * 订阅者按顺序拼接即可得到每个元素在目标文件中的位置。需求为0时读取任务结束并让出线程，
+ * 数据留在socket的接收缓冲中，写入慢时由TCP流量控制限制服务器的发送速度，不会在堆中堆积。
+ *
+ * <p>onNext 传出的ByteBuffer来自 {@link BufferPool}，之后归订阅者所有，用完后由订阅者释放。
+ */
+public final class SegmentPublisher implements SegmentFlow.Publisher<ByteBuffer> {
+
+    private final BufferedSource source;
+    private final FileTmp fileTmp;
+    private final Executor executor;
+    private final int bufferSize;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param executor 执行读取的线程池，读取时会阻塞在socket上
+     */
+    public SegmentPublisher(BufferedSource source, FileTmp fileTmp, Executor executor) {
+        this(source, fileTmp, executor, BufferPool.sizeFor(fileTmp.getEndPath() - fileTmp.startPath));
+    }
+
+    /**
+     * @param bufferSize 每次读取的缓冲区大小，见 {@link BufferPool#sizeFor(long, long)}
+     */
+    public SegmentPublisher(BufferedSource source, FileTmp fileTmp, Executor executor, int bufferSize) {
+        this.source = source;
+        this.fileTmp = fileTmp;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(SegmentFlow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new SourceSubscription(null));
+            subscriber.onError(new IllegalStateException("SegmentPublisher can only be subscribed once"));
+            return;
+        }
+        final SourceSubscription subscription = new SourceSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class SourceSubscription implements SegmentFlow.Subscription, Runnable {
+        private final SegmentFlow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();//不为0时已有读取任务，只增加需求
+        private volatile boolean cancelled;
+        private long position;//下一个元素在目标文件中的位置，只在读取任务中访问
+
+        SourceSubscription(SegmentFlow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+            this.position = fileTmp.startPath;
+            this.cancelled = subscriber == null;
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request " + n + " <= 0"));
+                return;
+            }
+            while (true) {
+                final long current = demand.get();
+                final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                if (demand.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    //wip不再归零，之后的请求不会再提交读取任务
+                    cancelled = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                while (demand.get() > 0 && !cancelled) {
+                    final ByteBuffer buffer;
+                    try {
+                        buffer = readNext();
+                    } catch (IOException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    if (buffer == null) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(buffer);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 预留并读满一个缓冲
+         * @return 分段已写完或source已读完时返回null
+         */
+        private ByteBuffer readNext() throws IOException {
+            final BufferPool pool = BufferPool.getInstance();
+            final ByteBuffer buffer = pool.acquire(bufferSize);
+            boolean handed = false;
+            try {
+                final int claimed = fileTmp.claim(position, buffer.capacity());
+                if (claimed <= 0) {
+                    return null;
+                }
+                buffer.limit(claimed);
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    return null;
+                }
+                position += buffer.remaining();
+                handed = true;
+                return buffer;
+            } finally {
+                if (!handed) {
+                    pool.release(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 按连接的实测速度自适应切分分段
+ *
+ * <p>先用少量连接开始下载，每个分段完成后按该连接的速度决定下一个分段的长度，
+ * 让每个分段大约下载TARGET_SEGMENT_MILLIS；单连接速度没有因为连接增多而明显下降时，
+ * 说明带宽还没有跑满，再增加一个连接，直到达到单个任务的连接上限。
+ * 连接由{@link DownloadDispatcher}统一分配，这里只决定任务还需不需要连接以及下一个分段。
+ * 新分段总是从剩余最大的区间中切出。
+ *
+ * <p>没有剩余区间时，空闲的连接窃取正在下载中剩余最多的分段的后一半：
+ * 被窃取分段的endPath原子地缩短到中点，窃取的部分作为新分段重新发起Range请求，
+ * 避免最后一个慢连接决定整个文件的完成时间。
+ *
+ * <p>有多个镜像时由 {@link MirrorSelector} 按各镜像的实测速度决定分段从哪个镜像下载，
+ * 分段长度按所选镜像的速度计算，连接数上限随可用的镜像数增加。窃取时优先选预计最晚完成的分段，
+ * 按两个镜像的速度比例切分，慢镜像上的剩余部分转移到快镜像；分段失败时剩下的区间放回，
+ * 换其他镜像重新下载，只有一个镜像或所有镜像都停用时任务才失败。
+ */
+public final class SegmentScheduler {
+
+    public static final int INITIAL_CONNECTIONS = 2;
+    public static final int MAX_CONNECTIONS = 6;
+
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    private static final long TARGET_SEGMENT_MILLIS = 4000;
+    private static final float SATURATION_RATIO = 0.8f;
+
+    private final FileTask fileTask;
+    private final long maxSegmentSize;
+    private final List<long[]> pending;
+    private final List<FileTmp> inFlight;
+    private final MirrorSelector selector;
+    private final boolean isRange;
+    private boolean singleDispatched;//不支持Range时整个文件只有一个分段
+    private long segmentSize;
+    private int connections;//当前允许的连接数
+    private int running;//正在下载的分段数
+    private int nextRunId;
+    private long bestSpeed;//单连接的最高速度 bytes/s
+
+    /**
+     * @param missingRanges 还未下载的区间 [start,end)
+     * @param maxSegmentSize 单个分段的最大长度
+     */
+    public SegmentScheduler(FileTask fileTask, List<long[]> missingRanges, long maxSegmentSize) {
+        this(fileTask, missingRanges, maxSegmentSize, Collections.singletonList(fileTask.url));
+    }
+
+    /**
+     * @param mirrors 内容一致的下载地址，分段在它们之间按速度分配
+     */
+    public SegmentScheduler(FileTask fileTask, List<long[]> missingRanges, long maxSegmentSize, List<String> mirrors) {
+        this(fileTask, missingRanges, maxSegmentSize, mirrors, true);
+    }
+
+    private SegmentScheduler(FileTask fileTask, List<long[]> missingRanges, long maxSegmentSize,
+                             List<String> mirrors, boolean isRange) {
+        this.fileTask = fileTask;
+        this.selector = new MirrorSelector(mirrors);
+        this.isRange = isRange;
+        this.maxSegmentSize = Math.max(maxSegmentSize, MIN_SEGMENT_SIZE);
+        this.pending = new ArrayList<>();
+        this.inFlight = new ArrayList<>();
+        for (long[] range : missingRanges) {
+            pending.add(new long[]{range[0], range[1]});
+        }
+        //每个镜像一开始至少有一个连接测速
+        this.connections = Math.min(Math.max(INITIAL_CONNECTIONS, selector.size()), maxConnections());
+        this.segmentSize = clampSegmentSize(remainingLength() / connections);
+    }
+
+    /**
+     * 服务器不支持Range时，整个文件用一个连接下载
+     */
+    public static SegmentScheduler single(FileTask fileTask) {
+        return new SegmentScheduler(fileTask, new ArrayList<long[]>(), fileTask.length,
+                Collections.singletonList(fileTask.url), false);
+    }
+
+    /**
+     * 分配到一个连接时取出下一个要下载的分段，分段的downloadUrl为选中的镜像
+     * @param fullHosts 连接数已满的host，不从这些host的镜像下载
+     * @return 任务不需要更多连接、没有可用的镜像或没有可下载的区间时返回null
+     */
+    public synchronized FileTmp next(Set<String> fullHosts) {
+        if (running >= connections) {
+            return null;
+        }
+        final MirrorSelector.Mirror mirror = selector.select(fullHosts);
+        if (mirror == null) {
+            return null;
+        }
+        FileTmp fileTmp;
+        if (!isRange) {
+            if (singleDispatched) {
+                return null;
+            }
+            singleDispatched = true;
+            fileTmp = new FileTmp(0, fileTask.length, fileTask.fileName, mirror.url, fileTask.url,
+                    nextRunId++, fileTask.savePath, false);
+        } else {
+            fileTmp = nextFileTmp(mirror);
+            if (fileTmp == null) {
+                fileTmp = stealFileTmp(mirror);
+            }
+            if (fileTmp == null) {
+                return null;
+            }
+        }
+        running++;
+        inFlight.add(fileTmp);
+        selector.onStart(mirror);
+        return fileTmp;
+    }
+
+    /**
+     * 分段下载完成，根据速度调整连接数和下一个分段的长度
+     * @param size 分段下载的字节数
+     * @param costMillis 分段从发起请求到写入完成的耗时，小于0表示没有经过网络
+     */
+    public synchronized void onFileTmpComplete(FileTmp fileTmp, long size, long costMillis) {
+        running--;
+        inFlight.remove(fileTmp);
+        final MirrorSelector.Mirror mirror = selector.find(fileTmp.downloadUrl);
+        if (fileTmp.isPaused() || costMillis < 0) {
+            //被暂停的分段和从缓存读取的分段速度不准确
+            if (mirror != null) {
+                selector.onComplete(mirror, -1);
+            }
+            return;
+        }
+        final long speed = size * 1000 / Math.max(costMillis, 1);
+        if (mirror != null) {
+            selector.onComplete(mirror, speed);
+        }
+        if (speed > bestSpeed) {
+            bestSpeed = speed;
+        }
+        if (speed >= bestSpeed * SATURATION_RATIO && connections < maxConnections()) {
+            connections++;
+        }
+        segmentSize = clampSegmentSize(speed * TARGET_SEGMENT_MILLIS / 1000);
+    }
+
+    /**
+     * 分段下载失败，释放它占用的连接；还有其他可用的镜像时把未写入的区间放回，换镜像重新下载
+     * @param written 分段已写入的结束位置，[startPath,written) 已经记录到下载日志
+     * @return 区间已放回、任务可以继续时返回true，否则任务失败
+     */
+    public synchronized boolean onFileTmpFailure(FileTmp fileTmp, long written) {
+        running--;
+        inFlight.remove(fileTmp);
+        final MirrorSelector.Mirror mirror = selector.find(fileTmp.downloadUrl);
+        if (mirror != null) {
+            selector.onFailure(mirror);
+        }
+        if (!isRange || selector.size() < 2 || selector.available() == 0) {
+            return false;
+        }
+        //已经不在inFlight中，不会再被窃取，暂停后endPath不再变化
+        final long[] remaining = fileTmp.pause();
+        final long end = remaining != null ? remaining[1] : fileTmp.getEndPath();
+        if (end > written) {
+            pending.add(new long[]{written, end});
+        }
+        connections = Math.min(connections, maxConnections());
+        return true;
+    }
+
+    /**
+     * 镜像返回的内容与任务不一致，不再从它下载
+     */
+    public synchronized void disableMirror(String url) {
+        final MirrorSelector.Mirror mirror = selector.find(url);
+        if (mirror != null) {
+            selector.disable(mirror);
+        }
+    }
+
+    /**
+     * @return 是否还需要连接，与{@link #next}的判断一致但不取出分段
+     */
+    public synchronized boolean wantsConnection(Set<String> fullHosts) {
+        if (running >= connections || selector.select(fullHosts) == null) {
+            return false;
+        }
+        if (!isRange) {
+            return !singleDispatched;
+        }
+        if (!pending.isEmpty()) {
+            return true;
+        }
+        for (FileTmp fileTmp : inFlight) {
+            if (fileTmp.getEndPath() - fileTmp.getPosition() >= 2 * MIN_SEGMENT_SIZE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 暂停剩余最多的一个分段，让出连接给高优先级任务，未下载的区间放回等待切分的区间中
+     * @return 被暂停的分段，没有可暂停的分段时返回null
+     */
+    public synchronized FileTmp preempt() {
+        FileTmp victim = null;
+        long victimRemaining = 0;
+        for (FileTmp fileTmp : inFlight) {
+            final long remaining = fileTmp.getEndPath() - fileTmp.getPosition();
+            if (!fileTmp.isPaused() && remaining > victimRemaining) {
+                victim = fileTmp;
+                victimRemaining = remaining;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        final long[] remaining = victim.pause();
+        if (remaining == null) {
+            return null;
+        }
+        pending.add(remaining);
+        return victim;
+    }
+
+    /**
+     * 区间 [start,end) 校验失败，放回等待切分的区间中重新下载
+     */
+    public synchronized void requeue(long start, long end) {
+        if (isRange && end > start) {
+            pending.add(new long[]{start, end});
+        }
+    }
+
+    /**
+     * 从剩余最大的区间头部切出一个分段，长度按镜像的速度计算，没有测过速度时使用segmentSize
+     */
+    private FileTmp nextFileTmp(MirrorSelector.Mirror mirror) {
+        final long segmentSize = mirror.speed() > 0
+                ? clampSegmentSize(mirror.speed() * TARGET_SEGMENT_MILLIS / 1000) : this.segmentSize;
+        long[] largest = null;
+        for (long[] range : pending) {
+            if (largest == null || range[1] - range[0] > largest[1] - largest[0]) {
+                largest = range;
+            }
+        }
+        if (largest == null) {
+            return null;
+        }
+        final long startPath = largest[0];
+        long endPath = Math.min(startPath + segmentSize, largest[1]);
+        //剩下的部分太小时并入当前分段，避免产生很小的请求
+        if (largest[1] - endPath < MIN_SEGMENT_SIZE) {
+            endPath = largest[1];
+        }
+        largest[0] = endPath;
+        if (largest[0] >= largest[1]) {
+            pending.remove(largest);
+        }
+        return new FileTmp(startPath, endPath, fileTask.fileName, mirror.url, fileTask.url,
+                nextRunId++, fileTask.savePath, true);
+    }
+
+    /**
+     * 从下载中预计最晚完成的分段窃取后面一部分，按两个镜像的速度切分，让两部分同时完成；
+     * 同一个镜像时与按剩余长度窃取后一半相同
+     */
+    private FileTmp stealFileTmp(MirrorSelector.Mirror mirror) {
+        FileTmp victim = null;
+        long victimSpeed = 0;
+        double victimTime = 0;
+        for (FileTmp fileTmp : inFlight) {
+            final long remaining = fileTmp.getEndPath() - fileTmp.getPosition();
+            final long speed = speedOf(selector.find(fileTmp.downloadUrl));
+            final double time = remaining / (double) speed;
+            if (remaining > 0 && time > victimTime) {
+                victim = fileTmp;
+                victimSpeed = speed;
+                victimTime = time;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        final long thiefSpeed = speedOf(mirror);
+        final long[] stolen = victim.split(MIN_SEGMENT_SIZE, victimSpeed / (double) (victimSpeed + thiefSpeed));
+        if (stolen == null) {
+            return null;
+        }
+        return new FileTmp(stolen[0], stolen[1], fileTask.fileName, mirror.url, fileTask.url,
+                nextRunId++, fileTask.savePath, true);
+    }
+
+    /**
+     * @return url对应镜像的单连接实测速度 bytes/s，没有测过时为目前最快的连接的速度，都没有测过时为0
+     */
+    public synchronized long measuredSpeed(String url) {
+        final MirrorSelector.Mirror mirror = selector.find(url);
+        if (mirror != null && mirror.speed() > 0) {
+            return mirror.speed();
+        }
+        return bestSpeed;
+    }
+
+    /**
+     * @return 镜像的单连接速度，没有测过时按目前最快的连接估计
+     */
+    private long speedOf(MirrorSelector.Mirror mirror) {
+        if (mirror != null && mirror.speed() > 0) {
+            return mirror.speed();
+        }
+        return Math.max(bestSpeed, 1);
+    }
+
+    /**
+     * @return 连接数上限，每个可用的镜像最多MAX_CONNECTIONS个连接
+     */
+    private int maxConnections() {
+        return isRange ? MAX_CONNECTIONS * Math.max(selector.available(), 1) : 1;
+    }
+
+    private long remainingLength() {
+        long length = 0;
+        for (long[] range : pending) {
+            length += range[1] - range[0];
+        }
+        return length;
+    }
+
+    private long clampSegmentSize(long segmentSize) {
+        return Math.max(MIN_SEGMENT_SIZE, Math.min(segmentSize, maxSegmentSize));
+    }
+}
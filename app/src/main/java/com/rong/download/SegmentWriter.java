@@ -0,0 +1,36 @@
+package com.rong.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import okio.BufferedSource;
+
+/**
+ * 分段写入目标文件的方式
+ */
+public interface SegmentWriter {
+
+    /**
+     * 将source中的数据写入该分段对应的位置
+     * @return 写入的字节数
+     */
+    long write(BufferedSource source) throws IOException;
+
+    /**
+     * 设置写入回调
+     */
+    void setWriteListener(WriteListener listener);
+
+    void close() throws IOException;
+
+    /**
+     * 写入回调，分段按顺序写入，每次回调的position紧接着上一次写入的末尾
+     */
+    interface WriteListener {
+        /**
+         * @param position data在目标文件中的起始位置
+         * @param data 已写入目标文件的数据，只在回调期间有效
+         */
+        void onWrite(long position, ByteBuffer data) throws IOException;
+    }
+}
@@ -0,0 +1,47 @@
+package com.rong.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的直接内存块，供 {@link SegmentCache} 存放分段内容，数据不占用Java堆
+ *
+ * <p>归还的块放入空闲队列复用，空闲块的数量不超过maxSlabs，超出的交给GC回收。
+ */
+final class SlabArena {
+    static final int SLAB_SIZE = BufferPool.SIZE_SMALL;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int maxSlabs;
+
+    /**
+     * @param maxBytes 空闲块最多占用的字节数
+     */
+    SlabArena(int maxBytes) {
+        this.maxSlabs = Math.max(1, maxBytes / SLAB_SIZE);
+    }
+
+    static int slabsFor(long length) {
+        return (int) ((length + SLAB_SIZE - 1) / SLAB_SIZE);
+    }
+
+    ByteBuffer acquire() {
+        final ByteBuffer slab = free.poll();
+        if (slab == null) {
+            return ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        freeCount.decrementAndGet();
+        slab.clear();
+        return slab;
+    }
+
+    void release(ByteBuffer slab) {
+        if (freeCount.incrementAndGet() <= maxSlabs) {
+            free.offer(slab);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
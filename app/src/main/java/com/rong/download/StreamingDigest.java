@@ -0,0 +1,313 @@
+package com.rong.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 边下载边计算文件的摘要，按期望值的长度选择MD5、SHA-1或SHA-256
+ *
+ * <p>摘要只能按顺序计算：写入位置正好接在已计算的前缀之后时，直接用写入的数据更新摘要；
+ * 其他分段先写入的数据只记录区间，等前缀推进到那里时在CPU线程池中从文件里读出来补算。
+ * 同一时间只有一个线程更新摘要，其他线程的数据只记录区间，不会被阻塞。
+ * 下载完成时只需补算还没有算过的部分，不需要再完整读一遍文件。
+ *
+ * <p>也可以只计算文件中从startPosition开始的一段，供分块校验使用。
+ */
+public final class StreamingDigest {
+
+    private static final int READ_BUFFER_SIZE = BufferPool.SIZE_LARGE;
+
+    private final MessageDigest digest;
+    private final File file;
+    private final long startPosition;
+    private final List<long[]> written;//已写入但还没有计算的区间，按起始位置排序且不重叠
+    private long hashedPosition;//[startPosition,hashedPosition)已经计算
+    private boolean hashing;//有线程正在更新摘要，或者补算已提交还没有开始
+    private boolean catchUpPending;//补算已提交到CPU线程池还没有开始，verify可以直接接手
+    private boolean invalidated;//已计算的部分被重新下载，校验时从头读取文件
+
+    private StreamingDigest(MessageDigest digest, File file, long startPosition) {
+        this.digest = digest;
+        this.file = file;
+        this.startPosition = startPosition;
+        this.hashedPosition = startPosition;
+        this.written = new ArrayList<>();
+    }
+
+    /**
+     * @param expected 期望的摘要，十六进制字符串
+     * @return 无法识别摘要算法时返回null
+     */
+    public static StreamingDigest create(String expected, File file) {
+        return create(expected, file, 0);
+    }
+
+    /**
+     * @param startPosition 从文件的该位置开始计算
+     * @return 无法识别摘要算法时返回null
+     */
+    public static StreamingDigest create(String expected, File file, long startPosition) {
+        final String algorithm = algorithmOf(expected);
+        if (algorithm == null) {
+            return null;
+        }
+        try {
+            return new StreamingDigest(MessageDigest.getInstance(algorithm), file, startPosition);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String algorithmOf(String expected) {
+        if (expected == null) {
+            return null;
+        }
+        switch (expected.trim().length()) {
+            case 32:
+                return "MD5";
+            case 40:
+                return "SHA-1";
+            case 64:
+                return "SHA-256";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 数据data已写入文件的 [position,position+data.remaining()) ，不会修改data的position
+     *
+     * <p>调用线程只用data更新摘要，前缀推进到其他分段已写入的区间时，
+     * 从文件中补读的工作交给 {@link ThreadManager#getCpuPool}，不占用网络线程。
+     */
+    public void update(long position, ByteBuffer data) {
+        final long end = position + data.remaining();
+        synchronized (this) {
+            if (invalidated) {
+                return;
+            }
+            if (hashing || position != hashedPosition) {
+                addWritten(position, end);
+                return;
+            }
+            hashing = true;
+        }
+        final boolean catchUp;
+        try {
+            digest.update(data.duplicate());
+        } finally {
+            synchronized (this) {
+                hashedPosition = end;
+                catchUp = !invalidated && !written.isEmpty() && written.get(0)[0] <= hashedPosition;
+                if (catchUp) {
+                    catchUpPending = true;
+                    notifyAll();
+                } else {
+                    finishHashing();
+                }
+            }
+        }
+        if (catchUp) {
+            scheduleCatchUp();
+        }
+    }
+
+    private void scheduleCatchUp() {
+        try {
+            ThreadManager.getCpuPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    catchUp();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //CPU线程池排满，记录的区间留到verify时补算
+            synchronized (this) {
+                if (catchUpPending) {
+                    catchUpPending = false;
+                    finishHashing();
+                }
+            }
+        }
+    }
+
+    /**
+     * 其他分段先写入的部分，前缀推进到这里后从文件中读出来补算，直到遇到还没有写入的位置
+     */
+    private void catchUp() {
+        synchronized (this) {
+            if (!catchUpPending) {
+                //已经由verify完成
+                return;
+            }
+            catchUpPending = false;
+        }
+        boolean finished = false;
+        try {
+            while (true) {
+                final long start;
+                final long frontier;
+                synchronized (this) {
+                    frontier = invalidated ? -1 : takeWritten(hashedPosition);
+                    if (frontier < 0) {
+                        finishHashing();
+                        finished = true;
+                        return;
+                    }
+                    start = hashedPosition;
+                }
+                read(start, frontier);
+                synchronized (this) {
+                    hashedPosition = frontier;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (!finished) {
+                //读取失败，校验时从头读取文件
+                synchronized (this) {
+                    invalidated = true;
+                    written.clear();
+                    finishHashing();
+                }
+            }
+        }
+    }
+
+    private void finishHashing() {
+        hashing = false;
+        notifyAll();
+    }
+
+    /**
+     * 区间 [start,end) 将被重新下载：还没有计算到时丢弃记录的区间，等重新写入；
+     * 已经计算过时只能在校验时从头读取文件
+     */
+    public synchronized void invalidate(long start, long end) {
+        if (invalidated) {
+            return;
+        }
+        if (hashing || hashedPosition > start) {
+            invalidated = true;
+            written.clear();
+            return;
+        }
+        for (int i = written.size() - 1; i >= 0; i--) {
+            final long[] range = written.get(i);
+            if (range[1] <= start || range[0] >= end) {
+                continue;
+            }
+            written.remove(i);
+            if (range[1] > end) {
+                written.add(i, new long[]{end, range[1]});
+            }
+            if (range[0] < start) {
+                written.add(i, new long[]{range[0], start});
+            }
+        }
+    }
+
+    /**
+     * 补算剩下的部分并与期望值比较，调用时所有分段都已经写完。
+     * 正在进行的补算先等它完成，已提交还没有开始的补算由当前线程接手，
+     * 在CPU线程池中调用时不会等待排在自己后面的任务
+     * @param length 文件长度，分块校验时为块的结束位置
+     */
+    public synchronized boolean verify(long length, String expected) throws IOException {
+        while (hashing && !catchUpPending) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for StreamingDigest");
+            }
+        }
+        catchUpPending = false;
+        hashing = false;
+        if (invalidated) {
+            digest.reset();
+            hashedPosition = startPosition;
+            invalidated = false;
+        }
+        if (hashedPosition < length) {
+            read(hashedPosition, length);
+            hashedPosition = length;
+        }
+        written.clear();
+        return toHex(digest.digest()).equalsIgnoreCase(expected.trim());
+    }
+
+    private void read(long start, long end) throws IOException {
+        final BufferPool pool = BufferPool.getInstance();
+        final ByteBuffer buffer = pool.acquire(READ_BUFFER_SIZE);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int len = channel.read(buffer, position);
+                if (len == -1) {
+                    throw new IOException("Unexpected end of " + file + " at " + position);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += len;
+            }
+        } finally {
+            raf.close();
+            pool.release(buffer);
+        }
+    }
+
+    private void addWritten(long start, long end) {
+        int index = 0;
+        while (index < written.size() && written.get(index)[0] < start) {
+            index++;
+        }
+        written.add(index, new long[]{start, end});
+        //与前后相邻的区间合并
+        if (index > 0 && written.get(index - 1)[1] >= start) {
+            written.get(index - 1)[1] = Math.max(written.get(index - 1)[1], end);
+            written.remove(index);
+            index--;
+        }
+        while (index + 1 < written.size() && written.get(index)[1] >= written.get(index + 1)[0]) {
+            written.get(index)[1] = Math.max(written.get(index)[1], written.get(index + 1)[1]);
+            written.remove(index + 1);
+        }
+    }
+
+    /**
+     * 取出从position开始的已写入区间
+     * @return 区间的结束位置，没有时返回-1
+     */
+    private long takeWritten(long position) {
+        if (written.isEmpty() || written.get(0)[0] > position) {
+            return -1;
+        }
+        final long[] range = written.remove(0);
+        return range[1] > position ? range[1] : takeWritten(position);
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package com.rong.download;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按线程分散到多个槽的计数器，多个线程同时累加时不会竞争同一个缓存行，读取时求和
+ *
+ * <p>作用与 java.util.concurrent.atomic.LongAdder 相同，LongAdder 在当前支持的Android版本上不可用。
+ */
+final class StripedCounter {
+    private static final int MAX_STRIPES = 16;
+    private static final int PADDING = 8;//每个槽占64字节，避免伪共享
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+
+    void add(long x) {
+        final long id = Thread.currentThread().getId();
+        cells.getAndAdd(((int) (id ^ (id >>> 16)) & mask) * PADDING, x);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * @return 当前的和，与并发的累加之间没有原子性
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
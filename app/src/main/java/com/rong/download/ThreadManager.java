@@ -1,6 +1,12 @@
 package com.rong.download;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -8,47 +14,197 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public final  class ThreadManager {
     private static final String TAG = ThreadManager.class.getSimpleName();
-    private volatile static ThreadPoolProxy poolProxy;
+    private volatile static ThreadPoolProxy ioPool;
+    private volatile static ThreadPoolProxy diskPool;
+    private volatile static ThreadPoolProxy cpuPool;
+    private volatile static ThreadPoolProxy prefetchPool;
+
+    /**
+     * 队列已满时抛出 {@link RejectedExecutionException}
+     */
+    public static final int REJECT_ABORT = 0;
+    /**
+     * 队列已满时在提交任务的线程中执行，提交速度被任务的执行速度限制。
+     * 任务会跑在UI线程、okhttp回调线程或其他线程池的线程上，只在确认提交线程可以执行任务时显式指定
+     */
+    public static final int REJECT_CALLER_RUNS = 1;
+    /**
+     * 队列已满时阻塞提交线程，超时仍没有空位则抛出 {@link RejectedExecutionException}
+     */
+    public static final int REJECT_BLOCK = 2;
+    /**
+     * 队列已满时丢弃任务，计入rejectedCount，只用于丢掉也不影响结果的任务，如预取
+     */
+    public static final int REJECT_DISCARD = 3;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+    private static final long DEFAULT_BLOCK_TIMEOUT = 2000;//队列已满时提交线程最多等待的时长 ms
+    private static final int DISK_THREADS = 2;//闪存同时处理少量顺序读写时吞吐最高，更多线程只会互相打断
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE_CAPACITY = 16;
 
     private ThreadManager(){
         throw new IllegalArgumentException("ThreadManager Initialization is not supported");
     }
 
+    /**
+     * @return 网络请求的线程池，与 {@link #getIoPool} 相同
+     */
     public static ThreadPoolProxy getPoolProxy() {
-        if (poolProxy == null) {
+        return getIoPool();
+    }
+
+    /**
+     * 网络请求：探测和分段下载，线程大部分时间阻塞在socket上，线程数多于CPU核数
+     */
+    public static ThreadPoolProxy getIoPool() {
+        if (ioPool == null) {
             synchronized (TAG) {
-                if (poolProxy == null) {
+                if (ioPool == null) {
                     int processorCount = Runtime.getRuntime().availableProcessors();
                     int maxAvailable = Math.max(processorCount * 3, 10);
                     // 线程池的核心线程数、最大线程数，以及keepAliveTime都需要根据项目需要做修改
                     // PS：创建线程的开销 高于 维护线程(wait)的开销
-                    poolProxy = new ThreadPoolProxy(processorCount, maxAvailable, 15000);
+                    // 队列有界，排满后才会创建超出核心线程数的线程，线程也满时提交线程等待空位，超时抛出异常
+                    // 提交线程可能是UI线程或磁盘线程，不能让它们去读socket
+                    ioPool = new ThreadPoolProxy(processorCount, maxAvailable, 15000,
+                            DEFAULT_QUEUE_CAPACITY, REJECT_BLOCK, DEFAULT_BLOCK_TIMEOUT, "csdn-io-");
                 }
             }
         }
-        return poolProxy;
+        return ioPool;
     }
 
-    public static class ThreadPoolProxy {
+    /**
+     * 大块磁盘读写：从磁盘缓存复制文件、把下载完成的文件存入磁盘缓存，线程数按存储的并行度设置
+     */
+    public static ThreadPoolProxy getDiskPool() {
+        if (diskPool == null) {
+            synchronized (TAG) {
+                if (diskPool == null) {
+                    diskPool = new ThreadPoolProxy(DISK_THREADS, DISK_THREADS, 15000,
+                            DEFAULT_QUEUE_CAPACITY, REJECT_BLOCK, DEFAULT_BLOCK_TIMEOUT, "csdn-disk-");
+                }
+            }
+        }
+        return diskPool;
+    }
+
+    /**
+     * 计算密集的任务：摘要校验，线程数等于CPU核数，不与网络请求争抢线程
+     */
+    public static ThreadPoolProxy getCpuPool() {
+        if (cpuPool == null) {
+            synchronized (TAG) {
+                if (cpuPool == null) {
+                    int processorCount = Runtime.getRuntime().availableProcessors();
+                    cpuPool = new ThreadPoolProxy(processorCount, processorCount, 15000,
+                            DEFAULT_QUEUE_CAPACITY, REJECT_BLOCK, DEFAULT_BLOCK_TIMEOUT, "csdn-cpu-");
+                }
+            }
+        }
+        return cpuPool;
+    }
+
+    /**
+     * 预取：任务入队时解析DNS、预热连接。与探测和分段下载分开，排满时直接丢弃，不阻塞提交线程
+     */
+    public static ThreadPoolProxy getPrefetchPool() {
+        if (prefetchPool == null) {
+            synchronized (TAG) {
+                if (prefetchPool == null) {
+                    prefetchPool = new ThreadPoolProxy(PREFETCH_THREADS, PREFETCH_THREADS, 15000,
+                            PREFETCH_QUEUE_CAPACITY, REJECT_DISCARD, 0, "csdn-prefetch-");
+                }
+            }
+        }
+        return prefetchPool;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的ExecutorService，阻塞在socket上的任务只占用几KB内存而不是一个线程栈
+     *
+     * <p>虚拟线程只在JDK 21及以上的JVM中可用，通过反射获取，Android和更低版本的JVM返回null。
+     * 只适合阻塞在网络上的任务，计算和大块磁盘读写仍然使用 {@link #getCpuPool} 和 {@link #getDiskPool}。
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-        private ThreadPoolExecutor threadPoolExecutor;     // 线程池
+    public static class ThreadPoolProxy implements Executor {
+
+        private volatile ThreadPoolExecutor threadPoolExecutor;     // 线程池
 
         private int                 corePoolSize;           //线程池中核心线程数
 
-        private int                 maximumPoolSize;        //线程池中最大线程数，若并发数高于该数，后面的任务则会等待
+        private int                 maximumPoolSize;        //线程池中最大线程数，队列排满后才会创建超出核心线程数的线程
 
         private int                 keepAliveTime;          // 超出核心线程数的线程在执行完后保持alive时长
 
+        private int                 queueCapacity;          // 等待队列的长度
+
+        private int                 rejectPolicy;           // 队列和线程都满时的处理方式
+
+        private long                blockTimeout;           // REJECT_BLOCK 时提交线程最多等待的时长
+
+        private String              threadNamePrefix;       // 线程名前缀，区分不同用途的线程池
+
+        private final StripedCounter completedCount  = new StripedCounter();
+        private final StripedCounter rejectedCount   = new StripedCounter();
+        private final StripedCounter callerRunsCount = new StripedCounter();
+        private final StripedCounter totalQueueTime  = new StripedCounter();
+        private final StripedCounter totalRunTime    = new StripedCounter();
+
         /**
          * @param keepAliveTime time in milliseconds
          */
         public ThreadPoolProxy(int corePoolSize, int maximumPoolSize,
                                int keepAliveTime) {
+            this(corePoolSize, maximumPoolSize, keepAliveTime, DEFAULT_QUEUE_CAPACITY, REJECT_BLOCK, DEFAULT_BLOCK_TIMEOUT);
+        }
+
+        /**
+         * @param keepAliveTime time in milliseconds
+         * @param queueCapacity 等待队列的长度
+         * @param rejectPolicy {@link #REJECT_ABORT}、{@link #REJECT_CALLER_RUNS}、{@link #REJECT_BLOCK} 或 {@link #REJECT_DISCARD}
+         * @param blockTimeout time in milliseconds，只在 {@link #REJECT_BLOCK} 时使用
+         */
+        public ThreadPoolProxy(int corePoolSize, int maximumPoolSize, int keepAliveTime,
+                               int queueCapacity, int rejectPolicy, long blockTimeout) {
+            this(corePoolSize, maximumPoolSize, keepAliveTime, queueCapacity, rejectPolicy, blockTimeout, "csdn-pool-");
+        }
+
+        /**
+         * @param threadNamePrefix 线程名前缀
+         */
+        public ThreadPoolProxy(int corePoolSize, int maximumPoolSize, int keepAliveTime,
+                               int queueCapacity, int rejectPolicy, long blockTimeout, String threadNamePrefix) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity <= 0");
+            }
+            if (rejectPolicy != REJECT_ABORT && rejectPolicy != REJECT_CALLER_RUNS && rejectPolicy != REJECT_BLOCK
+                    && rejectPolicy != REJECT_DISCARD) {
+                throw new IllegalArgumentException("Unknown reject policy " + rejectPolicy);
+            }
             this.corePoolSize       = corePoolSize;
             this.maximumPoolSize    = maximumPoolSize;
             this.keepAliveTime      = keepAliveTime;
+            this.queueCapacity      = queueCapacity;
+            this.rejectPolicy       = rejectPolicy;
+            this.blockTimeout       = blockTimeout;
+            this.threadNamePrefix   = threadNamePrefix;
         }
 
+        /**
+         * @throws RejectedExecutionException 队列已满且拒绝策略为 {@link #REJECT_ABORT}，
+         * 或 {@link #REJECT_BLOCK} 等待超时
+         */
+        @Override
         public void execute(Runnable runnable) {
             if (runnable == null) {
                 return;
@@ -61,17 +217,89 @@ public final  class ThreadManager {
                         }
                     }
                 }
-                threadPoolExecutor.execute(runnable);
+                threadPoolExecutor.execute(new TimedRunnable(runnable));
             }
         }
 
+        /**
+         * @return 当前的运行状态，线程池还没有创建时瞬时值都为0
+         */
+        public ExecutorStats stats() {
+            final ThreadPoolExecutor executor = threadPoolExecutor;
+            return new ExecutorStats(
+                    executor != null ? executor.getQueue().size() : 0,
+                    queueCapacity,
+                    executor != null ? executor.getActiveCount() : 0,
+                    executor != null ? executor.getPoolSize() : 0,
+                    executor != null ? executor.getLargestPoolSize() : 0,
+                    completedCount.sum(), rejectedCount.sum(), callerRunsCount.sum(),
+                    totalQueueTime.sum(), totalRunTime.sum());
+        }
+
         private ThreadPoolExecutor createExecutor() {
             return new ThreadPoolExecutor(corePoolSize,
                     maximumPoolSize, keepAliveTime,
                     TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>(),
-                    new DefaultThreadFactory(Thread.NORM_PRIORITY, "csdn-pool-"),
-                    new ThreadPoolExecutor.AbortPolicy());
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new DefaultThreadFactory(Thread.NORM_PRIORITY, threadNamePrefix),
+                    new RejectHandler());
+        }
+
+        /**
+         * 记录任务在队列中等待和执行的时间
+         */
+        private final class TimedRunnable implements Runnable {
+            private final Runnable runnable;
+            private final long submitTime;
+
+            TimedRunnable(Runnable runnable) {
+                this.runnable = runnable;
+                this.submitTime = System.nanoTime();
+            }
+
+            @Override
+            public void run() {
+                final long startTime = System.nanoTime();
+                totalQueueTime.add(startTime - submitTime);
+                try {
+                    runnable.run();
+                } finally {
+                    totalRunTime.add(System.nanoTime() - startTime);
+                    completedCount.increment();
+                }
+            }
+        }
+
+        /**
+         * 队列和线程都满时按 rejectPolicy 处理，并统计次数
+         */
+        private final class RejectHandler implements RejectedExecutionHandler {
+
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (rejectPolicy == REJECT_DISCARD) {
+                    rejectedCount.increment();
+                    return;
+                }
+                if (!executor.isShutdown()) {
+                    if (rejectPolicy == REJECT_CALLER_RUNS) {
+                        callerRunsCount.increment();
+                        r.run();
+                        return;
+                    }
+                    if (rejectPolicy == REJECT_BLOCK) {
+                        try {
+                            if (executor.getQueue().offer(r, blockTimeout, TimeUnit.MILLISECONDS)) {
+                                return;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                rejectedCount.increment();
+                throw new RejectedExecutionException("Task " + r + " rejected from " + executor);
+            }
         }
     }
 
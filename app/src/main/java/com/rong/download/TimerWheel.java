@@ -0,0 +1,126 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分层时间轮，按到期时间把节点放入不同精度的桶中，推进时只处理经过的桶，每次操作的均摊代价为O(1)
+ *
+ * <p>三层分别以约1秒、约69秒、约73分钟为一格，每层64格，更远的到期时间放在最后一层，
+ * 到时再重新放入。桶被推进时，节点如果还没有到期（例如访问后延长了到期时间）就按新的时间重新放入。
+ * 不是线程安全的，由调用者加锁。
+ */
+final class TimerWheel {
+    private static final int[] SHIFT = {30, 36, 42};
+    private static final int BUCKETS = 64;
+    private static final int MASK = BUCKETS - 1;
+
+    private final Node[][] wheel;
+    private long nanos;//上次推进到的时间
+
+    /**
+     * 时间轮中的节点，同一时间只能在一个桶中
+     */
+    static class Node {
+        Node timerPrev;
+        Node timerNext;
+        long time;//到期时间，System.nanoTime()
+
+        boolean isScheduled() {
+            return timerNext != null;
+        }
+    }
+
+    TimerWheel(long now) {
+        this.nanos = now;
+        this.wheel = new Node[SHIFT.length][BUCKETS];
+        for (Node[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final Node sentinel = new Node();
+                sentinel.timerPrev = sentinel;
+                sentinel.timerNext = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * 在time到期，已经在时间轮中时先移除
+     */
+    void schedule(Node node, long time) {
+        deschedule(node);
+        node.time = time;
+        final Node sentinel = findBucket(time);
+        node.timerPrev = sentinel.timerPrev;
+        node.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = node;
+        sentinel.timerPrev = node;
+    }
+
+    void deschedule(Node node) {
+        if (!node.isScheduled()) {
+            return;
+        }
+        node.timerPrev.timerNext = node.timerNext;
+        node.timerNext.timerPrev = node.timerPrev;
+        node.timerPrev = null;
+        node.timerNext = null;
+    }
+
+    /**
+     * 推进到now
+     * @return 到期时间不晚于now的节点，已从时间轮中移除
+     */
+    List<Node> advance(long now) {
+        final List<Node> expired = new ArrayList<>();
+        final long previous = nanos;
+        nanos = now;
+        for (int i = 0; i < SHIFT.length; i++) {
+            final long previousTicks = previous >>> SHIFT[i];
+            final long currentTicks = now >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, now, expired);
+        }
+        return expired;
+    }
+
+    private void expire(int level, long previousTicks, long delta, long now, List<Node> expired) {
+        final int steps = (int) Math.min(1 + delta, BUCKETS);
+        final int start = (int) (previousTicks & MASK);
+        for (int i = 0; i < steps; i++) {
+            final Node sentinel = wheel[level][(start + i) & MASK];
+            Node node = sentinel.timerNext;
+            //先摘下整个桶，重新放入的节点不会再被遍历
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+            while (node != sentinel) {
+                final Node next = node.timerNext;
+                node.timerPrev = null;
+                node.timerNext = null;
+                if (node.time - now <= 0) {
+                    expired.add(node);
+                } else {
+                    schedule(node, node.time);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private Node findBucket(long time) {
+        if (time - nanos < 0) {
+            //已经到期的节点放在当前的桶中，下次推进时处理
+            time = nanos;
+        }
+        final long duration = time - nanos;
+        final int last = SHIFT.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (duration < (1L << SHIFT[i + 1])) {
+                return wheel[i][(int) ((time >>> SHIFT[i]) & MASK)];
+            }
+        }
+        return wheel[last][(int) ((time >>> SHIFT[last]) & MASK)];
+    }
+}
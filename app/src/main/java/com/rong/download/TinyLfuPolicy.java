@@ -0,0 +1,129 @@
+package com.rong.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Window TinyLFU：新加入的项先进入占容量 1% 的 LRU 窗口，被挤出窗口后
+ * 只有估计的访问频率高于主区域中下一个要淘汰的项时才会被接纳，否则直接淘汰。
+ * 一次性的大批量扫描只会冲掉窗口，不会把主区域中的热点挤出去。
+ *
+ * <p>主区域分成试用区和保护区（占主区域的 80%），试用区中再次被访问的项升入保护区，
+ * 保护区超出容量时最久未访问的项降回试用区。访问频率由 {@link FrequencySketch} 估计，
+ * 计数器定期减半。
+ */
+public final class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final AccessQueue<K> window = new AccessQueue<>();
+    private final AccessQueue<K> probation = new AccessQueue<>();
+    private final AccessQueue<K> protectedQueue = new AccessQueue<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long maxWindow;
+    private long maxProtected;
+
+    @Override
+    public void setMaximum(int maxSize) {
+        maxWindow = Math.max(1, (long) (maxSize * WINDOW_RATIO));
+        maxProtected = (long) ((maxSize - maxWindow) * PROTECTED_RATIO);
+        sketch.ensureCapacity(maxSize);
+    }
+
+    @Override
+    public Node<K> onInsert(K key, int weight) {
+        sketch.increment(key);
+        final Node<K> node = new Node<>(key, weight);
+        node.queue = WINDOW;
+        window.linkLast(node);
+        return node;
+    }
+
+    @Override
+    public void onAccess(Node<K> node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                //试用区中再次被访问，升入保护区
+                probation.unlink(node);
+                node.queue = PROTECTED;
+                protectedQueue.linkLast(node);
+                demoteProtected();
+                break;
+            default:
+                protectedQueue.moveToBack(node);
+                break;
+        }
+    }
+
+    @Override
+    public void onRemove(Node<K> node) {
+        queueOf(node).unlink(node);
+    }
+
+    @Override
+    public Node<K> victim() {
+        //窗口超出容量的部分移入试用区尾部，成为等待接纳的候选
+        Node<K> candidate = null;
+        while (window.weight() > maxWindow && window.peekFirst() != null) {
+            candidate = window.peekFirst();
+            window.unlink(candidate);
+            candidate.queue = PROBATION;
+            probation.linkLast(candidate);
+        }
+        Node<K> victim = probation.peekFirst();
+        if (victim == null) {
+            victim = protectedQueue.peekFirst();
+        }
+        if (victim == null) {
+            return window.peekFirst();
+        }
+        if (candidate == null || candidate == victim) {
+            return victim;
+        }
+        //候选的访问频率更高时淘汰原来的项，否则不接纳候选
+        return sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+    }
+
+    @Override
+    public List<K> keys() {
+        final List<K> keys = new ArrayList<>();
+        probation.addKeysTo(keys);
+        protectedQueue.addKeysTo(keys);
+        window.addKeysTo(keys);
+        return keys;
+    }
+
+    /**
+     * 保护区超出容量时把最久未访问的项降回试用区
+     */
+    private void demoteProtected() {
+        while (protectedQueue.weight() > maxProtected) {
+            final Node<K> node = protectedQueue.peekFirst();
+            if (node == null) {
+                return;
+            }
+            protectedQueue.unlink(node);
+            node.queue = PROBATION;
+            probation.linkLast(node);
+        }
+    }
+
+    private AccessQueue<K> queueOf(Node<K> node) {
+        switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.rong.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 下载日志的恢复：丢弃写了一半的记录，与任务不一致时作废，回放作废记录，合并区间
+ */
+public class DownloadJournalTest {
+
+    private static final String URL = "http://example.com/file.bin";
+    private static final long LENGTH = 1000;
+    private static final String ETAG = "\"v1\"";
+
+    private File dir;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "test");
+        dir.delete();
+        dir.mkdirs();
+        journalFile = new File(dir, "file.bin.journal");
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void resumesCompletedRanges() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}, {300, 400}});
+        final DownloadJournal journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertEquals("[0,100)[300,400)", format(journal.completedRanges()));
+            assertEquals(200, journal.completedLength());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void truncatesTornTrailingRecord() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}, {100, 200}});
+        final long complete = journalFile.length();
+        //崩溃时最后一条记录只写了一半
+        final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.seek(complete);
+            raf.writeLong(500);
+        } finally {
+            raf.close();
+        }
+        DownloadJournal journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertEquals(complete, journalFile.length());
+            assertEquals("[0,200)", format(journal.completedRanges()));
+            //之后追加的记录接在完整的记录后面
+            journal.append(500, 600);
+        } finally {
+            journal.close();
+        }
+        journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertEquals("[0,200)[500,600)", format(journal.completedRanges()));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedLength() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}});
+        assertReset(newTask(URL, LENGTH * 2, ETAG), LENGTH * 2);
+    }
+
+    @Test
+    public void rejectsMismatchedUrl() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}});
+        assertReset(newTask("http://example.com/other.bin", LENGTH, ETAG), LENGTH);
+    }
+
+    @Test
+    public void rejectsChangedValidator() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}});
+        assertReset(newTask(URL, LENGTH, "\"v2\""), LENGTH);
+    }
+
+    @Test
+    public void rejectsChangedLastModified() throws IOException {
+        final FileTask old = newTask(URL, LENGTH, null);
+        old.setLastModified("Mon, 01 Jan 2024 00:00:00 GMT");
+        writeJournal(old, new long[][]{{0, 100}});
+        final FileTask changed = newTask(URL, LENGTH, null);
+        changed.setLastModified("Tue, 02 Jan 2024 00:00:00 GMT");
+        assertReset(changed, LENGTH);
+    }
+
+    @Test
+    public void rejectsChangedTargetLength() throws IOException {
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}});
+        //目标文件被删除
+        assertReset(newTask(URL, LENGTH, ETAG), -1);
+        writeJournal(newTask(URL, LENGTH, ETAG), new long[][]{{0, 100}});
+        //目标文件被截断或重建
+        assertReset(newTask(URL, LENGTH, ETAG), LENGTH / 2);
+    }
+
+    @Test
+    public void replaysInvalidationRecords() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), -1);
+        try {
+            journal.append(0, 100);
+            journal.append(100, 300);
+            journal.invalidate(50, 150);
+            assertEquals("[0,50)[150,300)", format(journal.completedRanges()));
+            journal.append(600, 700);
+        } finally {
+            journal.close();
+        }
+        journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertEquals("[0,50)[150,300)[600,700)", format(journal.completedRanges()));
+            //重新下载后的记录在作废记录之后，区间恢复
+            journal.append(50, 150);
+            journal.invalidate(650, 700);
+        } finally {
+            journal.close();
+        }
+        journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertEquals("[0,300)[600,650)", format(journal.completedRanges()));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void missingRangesMergeOverlappingAndAdjacentAppends() throws IOException {
+        final long[][] ranges = {{100, 200}, {0, 100}, {150, 250}, {400, 500}, {450, 480}};
+        DownloadJournal journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), -1);
+        try {
+            for (long[] range : ranges) {
+                journal.append(range[0], range[1]);
+            }
+            assertMissing(journal);
+        } finally {
+            journal.close();
+        }
+        journal = DownloadJournal.open(newTask(URL, LENGTH, ETAG), LENGTH);
+        try {
+            assertMissing(journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void assertMissing(DownloadJournal journal) {
+        assertEquals("[0,250)[400,500)", format(journal.completedRanges()));
+        assertEquals(350, journal.completedLength());
+        assertEquals("[250,400)[500,1000)", format(journal.missingRanges(LENGTH)));
+    }
+
+    /**
+     * 日志作废：不恢复任何区间，重新写入的日志头与新任务一致
+     */
+    private void assertReset(FileTask fileTask, long targetLength) throws IOException {
+        DownloadJournal journal = DownloadJournal.open(fileTask, targetLength);
+        try {
+            assertTrue(journal.completedRanges().isEmpty());
+            assertEquals("[0," + fileTask.length + ")", format(journal.missingRanges(fileTask.length)));
+        } finally {
+            journal.close();
+        }
+        journal = DownloadJournal.open(fileTask, fileTask.length);
+        try {
+            assertTrue(journal.completedRanges().isEmpty());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void writeJournal(FileTask fileTask, long[][] ranges) throws IOException {
+        final DownloadJournal journal = DownloadJournal.open(fileTask, -1);
+        try {
+            for (long[] range : ranges) {
+                journal.append(range[0], range[1]);
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    private FileTask newTask(String url, long length, String etag) {
+        final FileTask fileTask = new FileTask(url, null, length, dir.getPath(), "file.bin");
+        fileTask.setETag(etag);
+        return fileTask;
+    }
+
+    private static String format(List<long[]> ranges) {
+        final StringBuilder sb = new StringBuilder();
+        for (long[] range : ranges) {
+            sb.append('[').append(range[0]).append(',').append(range[1]).append(')');
+        }
+        return sb.toString();
+    }
+}
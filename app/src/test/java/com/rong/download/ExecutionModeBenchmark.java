@@ -0,0 +1,94 @@
+package com.rong.download;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对比分段任务的两种执行方式：网络线程池、每个分段一个虚拟线程
+ *
+ * <p>单元测试中没有HTTP服务器，每个分段用几次阻塞等待模拟从socket读取，
+ * 比较同时有1k和10k个分段时的总耗时和平台线程数。虚拟线程需要JDK 21及以上，更低版本只输出线程池的结果。
+ *
+ * <p>一次要执行一万多个阻塞任务，不随单元测试运行，行为由 {@link ExecutionModeTest} 覆盖。
+ * 手动运行：去掉 @Ignore 后执行
+ * {@code ./gradlew :app:testDebugUnitTest --tests com.rong.download.ExecutionModeBenchmark -i}，结果输出在日志中。
+ */
+@Ignore("benchmark, run manually")
+public class ExecutionModeBenchmark {
+
+    private static final int[] CONCURRENT_RANGES = {1000, 10000};
+    private static final int READS_PER_RANGE = 4;
+    private static final long READ_BLOCK_MILLIS = 5;
+
+    @Test
+    public void comparePoolAndVirtualThreads() throws InterruptedException {
+        for (int ranges : CONCURRENT_RANGES) {
+            final int processorCount = Runtime.getRuntime().availableProcessors();
+            final ThreadManager.ThreadPoolProxy pool = new ThreadManager.ThreadPoolProxy(processorCount,
+                    Math.max(processorCount * 3, 10), 15000, 128, ThreadManager.REJECT_CALLER_RUNS, 0, "bench-io-");
+            final long[] poolResult = run(new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    pool.execute(runnable);
+                }
+            }, ranges);
+            System.out.println(String.format("pool %d ranges: %dms, peak threads %d, %s",
+                    ranges, poolResult[0], poolResult[1], pool.stats()));
+
+            final ExecutorService virtual = ThreadManager.newVirtualThreadExecutor();
+            if (virtual == null) {
+                System.out.println("virtual threads are not available on " + System.getProperty("java.version"));
+                continue;
+            }
+            try {
+                final long[] virtualResult = run(virtual, ranges);
+                System.out.println(String.format("virtual %d ranges: %dms, peak threads %d",
+                        ranges, virtualResult[0], virtualResult[1]));
+            } finally {
+                virtual.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return {耗时ms, 峰值平台线程数}
+     */
+    private long[] run(Executor executor, int ranges) throws InterruptedException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        final CountDownLatch done = new CountDownLatch(ranges);
+        final AtomicInteger completed = new AtomicInteger();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ranges; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int read = 0; read < READS_PER_RANGE; read++) {
+                            Thread.sleep(READ_BLOCK_MILLIS);
+                        }
+                        completed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.MINUTES));
+        final long cost = (System.nanoTime() - start) / 1000000;
+        assertEquals(ranges, completed.get());
+        return new long[]{cost, threads.getPeakThreadCount()};
+    }
+}
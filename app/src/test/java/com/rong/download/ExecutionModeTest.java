@@ -0,0 +1,169 @@
+package com.rong.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 虚拟线程模式：阻塞方式的DownloadExecutor在调用线程中回调，不支持虚拟线程时不开启，各分段的虚拟线程之间复用缓冲区
+ */
+public class ExecutionModeTest {
+
+    private static final String BODY = "hello";
+    private static final int SEGMENTS = 16;
+
+    private ServerSocket server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        //只应答一个请求的HTTP服务器
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = server.accept();
+                    try {
+                        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                        String line;
+                        while ((line = reader.readLine()) != null && line.length() > 0) {
+                            //跳过请求头
+                        }
+                        final OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + BODY.length()
+                                + "\r\nConnection: close\r\n\r\n" + BODY).getBytes("US-ASCII"));
+                        out.flush();
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    //服务器已关闭
+                }
+            }
+        });
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void blockingResponseIsDeliveredOnCallingThread() throws Exception {
+        final AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        final AtomicReference<String> body = new AtomicReference<>();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        new DownloadExecutor.Builder()
+                .setUrl("http://127.0.0.1:" + server.getLocalPort() + "/file")
+                .setRunId(0)
+                .setBlocking(true)
+                .setDownloadFileCallback(new DownloadExecutor.DownloadFileCallback() {
+                    @Override
+                    public void onFailure(IOException e) {
+                        callbackThread.set(Thread.currentThread());
+                        failure.set(e);
+                    }
+
+                    @Override
+                    public void onResponse(String url, int runId, Response response) {
+                        callbackThread.set(Thread.currentThread());
+                        try {
+                            body.set(response.body().string());
+                        } catch (IOException e) {
+                            failure.set(e);
+                        } finally {
+                            response.close();
+                        }
+                    }
+                }).run();
+        //同步执行，run返回时已经回调
+        assertNull(failure.get());
+        assertEquals(BODY, body.get());
+        assertSame(Thread.currentThread(), callbackThread.get());
+    }
+
+    @Test
+    public void blockingFailureIsDeliveredOnCallingThread() throws Exception {
+        final int port = server.getLocalPort();
+        server.close();
+        serverThread.join();
+        final AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        new DownloadExecutor.Builder()
+                .setUrl("http://127.0.0.1:" + port + "/file")
+                .setRunId(0)
+                .setBlocking(true)
+                .setDownloadFileCallback(new DownloadExecutor.DownloadFileCallback() {
+                    @Override
+                    public void onFailure(IOException e) {
+                        callbackThread.set(Thread.currentThread());
+                        failure.set(e);
+                    }
+
+                    @Override
+                    public void onResponse(String url, int runId, Response response) {
+                        response.close();
+                        fail("connection should be refused");
+                    }
+                }).run();
+        assertNotNull(failure.get());
+        assertSame(Thread.currentThread(), callbackThread.get());
+    }
+
+    @Test
+    public void virtualThreadModeFollowsAvailability() {
+        final ExecutorService probe = ThreadManager.newVirtualThreadExecutor();
+        final boolean available = probe != null;
+        if (probe != null) {
+            probe.shutdown();
+        }
+        final DownloadManagerGlobal manager = DownloadManagerGlobal.instance();
+        try {
+            //不支持虚拟线程时返回false，仍使用网络线程池
+            assertEquals(available, manager.setVirtualThreadMode(true));
+        } finally {
+            assertFalse(manager.setVirtualThreadMode(false));
+        }
+    }
+
+    @Test
+    public void virtualThreadSegmentsReuseBuffers() throws Exception {
+        final ExecutorService executor = ThreadManager.newVirtualThreadExecutor();
+        assumeTrue("virtual threads need JDK 21", executor != null);
+        final BufferPool pool = BufferPool.getInstance();
+        try {
+            final long hits = pool.hitCount();
+            final long misses = pool.missCount();
+            for (int i = 0; i < SEGMENTS; i++) {
+                //每个分段一个虚拟线程，线程退出后归还的缓冲区仍能被下一个分段取到
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        pool.release(pool.acquire(BufferPool.SIZE_LARGE));
+                    }
+                }).get();
+            }
+            assertTrue(pool.missCount() - misses <= 1);
+            assertTrue(pool.hitCount() - hits >= SEGMENTS - 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.rong.download;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * LruCache换成无锁读取后仍保持原来的约定：淘汰顺序、sizeOf计数、entryRemoved和create的回调
+ */
+public class LruCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20000;
+    private static final int KEYS = 200;
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+        //读取过的a排到最后，淘汰最久没有使用的b
+        assertNull(cache.get("b"));
+        assertEquals(Arrays.asList("c", "a", "d"), new ArrayList<>(cache.snapshot().keySet()));
+        assertEquals(Arrays.asList("evicted b=B"), cache.removed);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void snapshotIsOrderedFromEldestToNewest() {
+        final LruCache<String, String> cache = new LruCache<>(10);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("b");
+        cache.put("a", "A2");
+        final Map<String, String> snapshot = cache.snapshot();
+        assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<>(snapshot.keySet()));
+        assertEquals("A2", snapshot.get("a"));
+        //快照不随缓存变化
+        cache.remove("c");
+        assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void sizeOfIsAccounted() {
+        final LruCache<String, String> cache = new LruCache<String, String>(10) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals(8, cache.size());
+        cache.put("a", "a");
+        assertEquals(5, cache.size());
+        cache.put("c", "cccccc");
+        //11超过10，淘汰最久没有使用的b
+        assertEquals(7, cache.size());
+        assertNull(cache.get("b"));
+        cache.remove("a");
+        assertEquals(6, cache.size());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void inconsistentSizeOfIsReported() {
+        final int[] weight = {2};
+        final LruCache<String, String> cache = new LruCache<String, String>(10) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return weight[0];
+            }
+        };
+        cache.put("a", "A");
+        //在缓存中时大小变化，删除后size变为负数
+        weight[0] = 3;
+        cache.remove("a");
+        try {
+            cache.evictAll();
+            fail("inconsistent sizeOf should be reported");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void entryRemovedReportsEvictedAndReplaced() {
+        final RecordingCache cache = new RecordingCache(2);
+        cache.put("a", "A");
+        cache.put("a", "A2");
+        cache.put("b", "B");
+        cache.remove("b");
+        cache.put("c", "C");
+        cache.put("d", "D");
+        cache.evictAll();
+        assertEquals(Arrays.asList(
+                "replaced a=A by A2",
+                "removed b=B",
+                "evicted a=A2",
+                "evicted c=C",
+                "evicted d=D"), cache.removed);
+    }
+
+    @Test
+    public void createConflictKeepsCachedValue() {
+        final AtomicReference<LruCache<String, String>> ref = new AtomicReference<>();
+        final RecordingCache cache = new RecordingCache(10) {
+            @Override
+            protected String create(String key) {
+                //create执行期间其他线程放入了同一个键
+                ref.get().put(key, "put");
+                return "created";
+            }
+        };
+        ref.set(cache);
+        assertEquals("put", cache.get("a"));
+        assertEquals(Arrays.asList("replaced a=created by put"), cache.removed);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.missCount());
+        assertEquals("put", cache.get("a"));
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    public void createdValueIsCached() {
+        final RecordingCache cache = new RecordingCache(10) {
+            @Override
+            protected String create(String key) {
+                return key.toUpperCase();
+            }
+        };
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.hitCount());
+        assertTrue(cache.removed.isEmpty());
+    }
+
+    @Test
+    public void concurrentAccessKeepsSizeConsistent() throws Exception {
+        stress(new WeightedCache(100, new LruPolicy<Integer>()));
+        stress(new WeightedCache(100, new TinyLfuPolicy<Integer>()));
+    }
+
+    private void stress(final WeightedCache cache) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int seed = i;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int n = 0; n < OPERATIONS; n++) {
+                            final int key = random.nextInt(KEYS);
+                            if (random.nextInt(4) == 0) {
+                                cache.put(key, key);
+                            } else if (random.nextInt(20) == 0) {
+                                cache.remove(key);
+                            } else {
+                                cache.get(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(cache.size() <= cache.maxSize());
+        int sum = 0;
+        for (Map.Entry<Integer, Integer> e : cache.snapshot().entrySet()) {
+            sum += cache.weightOf(e.getKey());
+        }
+        assertEquals(sum, cache.size());
+    }
+
+    /**
+     * 记录entryRemoved的调用
+     */
+    private static class RecordingCache extends LruCache<String, String> {
+        final List<String> removed = new ArrayList<>();
+
+        RecordingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            if (evicted) {
+                removed.add("evicted " + key + "=" + oldValue);
+            } else if (newValue != null) {
+                removed.add("replaced " + key + "=" + oldValue + " by " + newValue);
+            } else {
+                removed.add("removed " + key + "=" + oldValue);
+            }
+        }
+    }
+
+    /**
+     * 每个键的大小固定为1到5
+     */
+    private static final class WeightedCache extends LruCache<Integer, Integer> {
+
+        WeightedCache(int maxSize, EvictionPolicy<Integer> policy) {
+            super(maxSize, policy);
+        }
+
+        int weightOf(int key) {
+            return key % 5 + 1;
+        }
+
+        @Override
+        protected int sizeOf(Integer key, Integer value) {
+            return weightOf(key);
+        }
+    }
+}
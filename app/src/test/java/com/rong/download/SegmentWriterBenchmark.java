@@ -0,0 +1,157 @@
+package com.rong.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对比分段写入的三种方式：临时文件再合并、FileChannel按偏移写入、内存映射写入
+ *
+ * <p>每次要写几百MB，不随单元测试运行，正确性由 {@link SegmentWriterTest} 覆盖。
+ * 手动运行：去掉 @Ignore 后执行
+ * {@code ./gradlew :app:testDebugUnitTest --tests com.rong.download.SegmentWriterBenchmark -i}，结果输出在日志中。
+ */
+@Ignore("benchmark, run manually")
+public class SegmentWriterBenchmark {
+
+    private static final int SEGMENT_COUNT = 4;
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    private byte[] data;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[SEGMENT_COUNT * SEGMENT_SIZE];
+        new Random(7).nextBytes(data);
+        dir = File.createTempFile("segment", "bench");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void compareWriteModes() throws IOException {
+        long streamCopy = Long.MAX_VALUE;
+        long channel = Long.MAX_VALUE;
+        long mmap = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            streamCopy = Math.min(streamCopy, runStreamCopy());
+            channel = Math.min(channel, runWriter(false));
+            mmap = Math.min(mmap, runWriter(true));
+        }
+        System.out.println(String.format("stream-copy %dms, channel %dms, mmap %dms for %dMB",
+                streamCopy, channel, mmap, data.length / 1024 / 1024));
+    }
+
+    private long runWriter(boolean mapped) throws IOException {
+        File target = prepareTarget();
+        final long start = System.nanoTime();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            final long startPath = (long) i * SEGMENT_SIZE;
+            final FileTmp fileTmp = new FileTmp(startPath, startPath + SEGMENT_SIZE, target.getName(),
+                    target.getPath(), target.getPath(), i, dir.getPath(), true);
+            SegmentWriter writer = mapped
+                    ? new MappedSegmentWriter(target, fileTmp, MappedSegmentWriter.DEFAULT_WINDOW_SIZE, false)
+                    : new ChannelSegmentWriter(target, fileTmp);
+            try {
+                assertEquals(SEGMENT_SIZE, writer.write(segmentSource(i)));
+            } finally {
+                writer.close();
+            }
+        }
+        final long cost = (System.nanoTime() - start) / 1000000;
+        assertContent(target);
+        return cost;
+    }
+
+    /**
+     * 原有方式：每个分段先写入临时文件，再读出来拷贝到目标文件
+     */
+    private long runStreamCopy() throws IOException {
+        File target = prepareTarget();
+        final long start = System.nanoTime();
+        byte[] buf = new byte[2048];
+        int len;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            File tmp = new File(dir, "target_" + i + "_tmp");
+            InputStream is = segmentSource(i).inputStream();
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                while ((len = is.read(buf)) != -1) {
+                    fos.write(buf, 0, len);
+                }
+                fos.flush();
+            } finally {
+                fos.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(target, "rw");
+            FileInputStream fis = new FileInputStream(tmp);
+            try {
+                raf.seek((long) i * SEGMENT_SIZE);
+                while ((len = fis.read(buf)) != -1) {
+                    raf.write(buf, 0, len);
+                }
+            } finally {
+                fis.close();
+                raf.close();
+            }
+            tmp.delete();
+        }
+        final long cost = (System.nanoTime() - start) / 1000000;
+        assertContent(target);
+        return cost;
+    }
+
+    private BufferedSource segmentSource(int index) {
+        return new Buffer().write(data, index * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    private File prepareTarget() throws IOException {
+        File target = new File(dir, "target");
+        target.delete();
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(data.length);
+        } finally {
+            raf.close();
+        }
+        return target;
+    }
+
+    private void assertContent(File target) throws IOException {
+        byte[] read = new byte[data.length];
+        RandomAccessFile raf = new RandomAccessFile(target, "r");
+        try {
+            raf.readFully(read);
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(data, read);
+    }
+}
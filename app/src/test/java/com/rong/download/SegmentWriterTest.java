@@ -0,0 +1,114 @@
+package com.rong.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分段写入的正确性：各分段写到自己的偏移位置，不越过endPath
+ */
+public class SegmentWriterTest {
+
+    private static final int SEGMENT_COUNT = 3;
+    private static final int SEGMENT_SIZE = 100 * 1000;//不按页对齐，内存映射时跨窗口
+    private static final long WINDOW_SIZE = 64 * 1024;
+
+    private byte[] data;
+    private File dir;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[SEGMENT_COUNT * SEGMENT_SIZE];
+        new Random(7).nextBytes(data);
+        dir = File.createTempFile("segment", "test");
+        dir.delete();
+        dir.mkdirs();
+        target = new File(dir, "target");
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(data.length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        target.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void channelWriterWritesEachSegmentAtItsOffset() throws IOException {
+        writeSegmentsInReverse(false);
+        assertArrayEquals(data, readTarget());
+    }
+
+    @Test
+    public void mappedWriterWritesEachSegmentAtItsOffset() throws IOException {
+        writeSegmentsInReverse(true);
+        assertArrayEquals(data, readTarget());
+    }
+
+    @Test
+    public void writerStopsAtEndPath() throws IOException {
+        //源比分段长时只写到endPath，后面的分段不受影响
+        final FileTmp fileTmp = newFileTmp(0);
+        final SegmentWriter writer = new ChannelSegmentWriter(target, fileTmp);
+        try {
+            assertEquals(SEGMENT_SIZE, writer.write(new Buffer().write(data, 0, 2 * SEGMENT_SIZE)));
+        } finally {
+            writer.close();
+        }
+        final byte[] read = readTarget();
+        for (int i = 0; i < data.length; i++) {
+            assertEquals("byte " + i, i < SEGMENT_SIZE ? data[i] : 0, read[i]);
+        }
+    }
+
+    private void writeSegmentsInReverse(boolean mapped) throws IOException {
+        for (int i = SEGMENT_COUNT - 1; i >= 0; i--) {
+            final FileTmp fileTmp = newFileTmp(i);
+            final SegmentWriter writer = mapped
+                    ? new MappedSegmentWriter(target, fileTmp, WINDOW_SIZE, false)
+                    : new ChannelSegmentWriter(target, fileTmp);
+            try {
+                assertEquals(SEGMENT_SIZE, writer.write(segmentSource(i)));
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private FileTmp newFileTmp(int index) {
+        final long startPath = (long) index * SEGMENT_SIZE;
+        return new FileTmp(startPath, startPath + SEGMENT_SIZE, target.getName(),
+                target.getPath(), target.getPath(), index, dir.getPath(), true);
+    }
+
+    private BufferedSource segmentSource(int index) {
+        return new Buffer().write(data, index * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    private byte[] readTarget() throws IOException {
+        byte[] read = new byte[data.length];
+        RandomAccessFile raf = new RandomAccessFile(target, "r");
+        try {
+            raf.readFully(read);
+        } finally {
+            raf.close();
+        }
+        return read;
+    }
+}